@@ -0,0 +1,197 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Customer;
+import de.domistiller.banker.model.Transfer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Database operations of the console against a local MySQL, configured by the file named by -Dbench.settings
+ * There is no default, so the benchmark never writes to the application's database by accident
+ *
+ * The database is seeded up to the accounts parameter on the first run, with transfersPerAccount random
+ * transfers for every account created, later runs reuse the existing data
+ * Use a database of its own, the seeded customers and the transfers made by makeTransfer are kept
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    // Every account starts with this, so seeded transfers never run out of funds
+    private final static BigDecimal INITIAL_BALANCE = new BigDecimal("1000000.00");
+    private final static Amount TRANSFER_AMOUNT = new Amount(new BigDecimal("0.01"), "EUR");
+
+    @Param({"10000"})
+    private int accounts;
+
+    @Param({"20"})
+    private int transfersPerAccount;
+
+    private Database db;
+    private Account.Reference[] refs;
+    private Amount balance;
+    private String otherCurrency;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (accounts < 2) {
+            throw new IllegalArgumentException("transfers need at least two accounts");
+        }
+        String file = System.getProperty("bench.settings");
+        if (file == null) {
+            throw new IllegalArgumentException("set -Dbench.settings to the settings of a database for benchmarks");
+        }
+        Properties settings = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            settings.load(in);
+        }
+        log.setLevel(java.util.logging.Level.SEVERE);
+        db = new Database(settings);
+
+        List<String> currencies = db.getCurrencies();
+        if (currencies.size() < 2) {
+            throw new IllegalStateException("at least two currencies with exchange rates are needed");
+        }
+        otherCurrency = currencies.get(1);
+
+        refs = listAccounts();
+        if (refs.length < accounts) {
+            seed(accounts - refs.length, currencies);
+            refs = listAccounts();
+        }
+        if (refs.length < accounts) {
+            throw new IllegalStateException("could only seed " + refs.length + " of " + accounts + " accounts");
+        }
+
+        balance = db.getAccountBalance(refs[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+    }
+
+    /**
+     * @return The first accounts, up to the accounts parameter
+     */
+    private Account.Reference[] listAccounts() {
+        List<Account.Reference> list = new ArrayList<>(accounts);
+        db.forEachAccount(a -> {
+            if (list.size() < accounts) {
+                list.add(a.getRef());
+            }
+        });
+        return list.toArray(new Account.Reference[0]);
+    }
+
+    private void seed(int count, List<String> currencies) {
+        long start = System.nanoTime();
+
+        List<Customer> customers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Customer c = new Customer("Benchmark " + i);
+            c.setEmail("benchmark" + i + "@example.com");
+            customers.add(c);
+        }
+        db.createCustomers(customers);
+
+        List<Account> newAccounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (customers.get(i).getId() > 0) {
+                newAccounts.add(new Account(customers.get(i).getId(), 1,
+                        new Amount(INITIAL_BALANCE, currencies.get(i % currencies.size()))));
+            }
+        }
+        BatchResult created = db.createAccounts(newAccounts);
+
+        // Transfers between all accounts, not only the new ones, so histories spread across the data
+        Account.Reference[] all = listAccounts();
+        long transfers = (long) created.getSucceeded() * transfersPerAccount;
+        Random random = new Random(42);
+        Iterator<Transfer> generated = new Iterator<Transfer>() {
+            private long made;
+
+            @Override
+            public boolean hasNext() {
+                return made < transfers;
+            }
+
+            @Override
+            public Transfer next() {
+                made++;
+                Account.Reference sender = all[random.nextInt(all.length)];
+                Account.Reference receiver;
+                do {
+                    receiver = all[random.nextInt(all.length)];
+                } while (receiver.equals(sender));
+                Amount amount = new Amount(BigDecimal.valueOf(1 + random.nextInt(10_000), 2),
+                        currencies.get(random.nextInt(currencies.size())));
+                return new Transfer(sender, receiver, amount, "Benchmark " + made);
+            }
+        };
+        BatchResult made = db.makeTransfers(generated);
+
+        System.out.printf("Seeded %d accounts and %d transfers in %.1f s\n",
+                created.getSucceeded(), made.getSucceeded(), (System.nanoTime() - start) / 1e9);
+    }
+
+    private Account.Reference randomAccount() {
+        return refs[ThreadLocalRandom.current().nextInt(refs.length)];
+    }
+
+    @Benchmark
+    public Amount getAccountBalance() {
+        return db.getAccountBalance(randomAccount());
+    }
+
+    @Benchmark
+    public List<Transfer> getTransfers() {
+        return db.getTransfers(randomAccount());
+    }
+
+    @Benchmark
+    public boolean makeTransfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sender = random.nextInt(refs.length);
+        // Any other account, never the sender itself
+        int receiver = (sender + 1 + random.nextInt(refs.length - 1)) % refs.length;
+        return db.makeTransfer(new Transfer(refs[sender], refs[receiver], TRANSFER_AMOUNT, "Benchmark"));
+    }
+
+    @Benchmark
+    public Amount convertCurrency() {
+        return db.convertCurrency(balance, otherCurrency);
+    }
+}
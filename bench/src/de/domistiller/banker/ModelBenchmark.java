@@ -0,0 +1,139 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Amount arithmetic and account reference lookups, which every transfer, balance and statement goes through
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelBenchmark {
+
+    // Power of two, so the next reference is picked with a mask
+    private final static int REFERENCES = 4096;
+
+    private long units;
+    private long otherUnits;
+    private long rate;
+    private Amount amount;
+    private Amount otherAmount;
+
+    private Account.Reference[] refs;
+    // Equal to refs but other instances, as they come from parsed input
+    private Account.Reference[] lookups;
+    private Map<Account.Reference, Integer> slots;
+    private AccountIndex index;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        units = Amount.toUnits(new BigDecimal("1234.56"));
+        otherUnits = Amount.toUnits(new BigDecimal("78.90"));
+        rate = Amount.toRate(new BigDecimal("1.13456"));
+        amount = new Amount(new BigDecimal("1234.56"), "EUR");
+        otherAmount = new Amount(new BigDecimal("78.90"), "EUR");
+
+        Random random = new Random(42);
+        refs = new Account.Reference[REFERENCES];
+        lookups = new Account.Reference[REFERENCES];
+        slots = new HashMap<>();
+        index = new AccountIndex(REFERENCES);
+        for (int i = 0; i < REFERENCES; i++) {
+            refs[i] = new Account.Reference(1 + random.nextInt(100_000), 1 + random.nextInt(5));
+            lookups[i] = new Account.Reference(refs[i].getCustomerId(), refs[i].getAccountNumber());
+            slots.put(refs[i], i);
+            index.add(refs[i].key());
+        }
+    }
+
+    private Account.Reference nextLookup() {
+        return lookups[next++ & (REFERENCES - 1)];
+    }
+
+    @Benchmark
+    public long addUnits() {
+        return Amount.add(units, otherUnits);
+    }
+
+    @Benchmark
+    public long subtractUnits() {
+        return Amount.subtract(units, otherUnits);
+    }
+
+    @Benchmark
+    public long convertUnits() {
+        return Amount.convert(units, rate);
+    }
+
+    @Benchmark
+    public Amount plus() {
+        return amount.plus(otherAmount);
+    }
+
+    @Benchmark
+    public Amount minus() {
+        return amount.minus(otherAmount);
+    }
+
+    @Benchmark
+    public int compare() {
+        return amount.compareTo(otherAmount);
+    }
+
+    @Benchmark
+    public Amount parse() {
+        return new Amount(new BigDecimal("1234.56"), "EUR");
+    }
+
+    @Benchmark
+    public String format() {
+        return amount.toString();
+    }
+
+    @Benchmark
+    public int referenceHashCode() {
+        return nextLookup().hashCode();
+    }
+
+    @Benchmark
+    public boolean referenceEquals() {
+        int i = next++ & (REFERENCES - 1);
+        return lookups[i].equals(refs[i]);
+    }
+
+    @Benchmark
+    public Integer referenceHashMapLookup() {
+        return slots.get(nextLookup());
+    }
+
+    @Benchmark
+    public int referenceIndexLookup() {
+        return index.find(nextLookup().key());
+    }
+
+    @Benchmark
+    public Account.Reference referenceFromKey() {
+        return Account.Reference.fromKey(refs[next++ & (REFERENCES - 1)].key());
+    }
+}
@@ -0,0 +1,77 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Transfer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Formatter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of bank statements as printed by the console and written by StatementRun, without the database
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatementBenchmark {
+
+    // Transfers per statement
+    @Param({"10", "1000"})
+    private int transfers;
+
+    private final Account.Reference ref = new Account.Reference(1, 1);
+    private Transfer[] statement;
+    private StringBuilder text;
+    private Formatter out;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[] currencies = {"EUR", "USD", "CAD"};
+        LocalDateTime date = LocalDateTime.of(2019, 3, 1, 9, 0);
+
+        statement = new Transfer[transfers];
+        for (int i = 0; i < transfers; i++) {
+            Account.Reference other = new Account.Reference(2 + random.nextInt(1000), 1);
+            boolean outgoing = random.nextBoolean();
+            Amount amount = new Amount(BigDecimal.valueOf(1 + random.nextInt(100_000), 2),
+                    currencies[random.nextInt(currencies.length)]);
+            statement[i] = new Transfer(i + 1,
+                    outgoing ? ref : other, outgoing ? "Jane Doe" : "John Smith",
+                    outgoing ? other : ref, outgoing ? "John Smith" : "Jane Doe",
+                    amount, date.plusMinutes(37L * i), "Invoice " + i);
+        }
+
+        text = new StringBuilder(200 * transfers);
+        out = new Formatter(text);
+    }
+
+    /**
+     * @return Characters written, so the work is not optimized away
+     */
+    @Benchmark
+    public int printStatement() {
+        text.setLength(0);
+        for (Transfer t : statement) {
+            Banker.printTransfer(out, t, ref);
+        }
+        return text.length();
+    }
+}
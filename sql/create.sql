@@ -1,3 +1,6 @@
+DROP TABLE IF EXISTS schema_version;
+DROP TABLE IF EXISTS daily_balances;
+DROP TABLE IF EXISTS balance_checkpoints;
 DROP TABLE IF EXISTS Transfers;
 DROP TABLE IF EXISTS Accounts;
 DROP TABLE IF EXISTS Customers;
@@ -40,6 +43,9 @@ CREATE TABLE Accounts
    account_no      int,
    currency        char(3) NOT NULL,
    initial_balance decimal(10, 2) NOT NULL,
+   -- Maintained by every transfer, see Database.makeTransfer
+   -- Scale 7 holds amount * rate exactly, so it matches a recomputation from Transfers
+   current_balance decimal(19, 7) NOT NULL,
    PRIMARY KEY (customer_id, account_no),
    FOREIGN KEY (customer_id)
       REFERENCES Customers (id)
@@ -60,6 +66,9 @@ CREATE TABLE Transfers
    execution_date   datetime NOT NULL,
    reference        varchar(100) DEFAULT '',
    PRIMARY KEY (id),
+   -- Transfer history of an account in date order
+   INDEX transfers_sender_date (sender_id, sender_account, execution_date),
+   INDEX transfers_receiver_date (receiver_id, receiver_account, execution_date),
    FOREIGN KEY (sender_id)
       REFERENCES Customers (id),
    FOREIGN KEY (sender_id, sender_account)
@@ -71,3 +80,49 @@ CREATE TABLE Transfers
    FOREIGN KEY (currency)
       REFERENCES Currencies (code)
 );
+
+-- Balances at points in time, written by Database.createBalanceCheckpoints
+CREATE TABLE balance_checkpoints
+(
+   customer_id      int,
+   account_no       int,
+   -- Includes all transfers up to last_transfer_id, the last one executed up to as_of
+   as_of            datetime NOT NULL,
+   balance          decimal(19, 7) NOT NULL,
+   last_transfer_id int NOT NULL,
+   PRIMARY KEY (customer_id, account_no, as_of),
+   -- Latest round of checkpoints
+   INDEX balance_checkpoints_as_of (as_of),
+   FOREIGN KEY (customer_id, account_no)
+      REFERENCES Accounts (customer_id, account_no)
+);
+
+-- Balances at the end of each day, written by EndOfDay
+CREATE TABLE daily_balances
+(
+   customer_id      int,
+   account_no       int,
+   business_date    date NOT NULL,
+   balance          decimal(19, 7) NOT NULL,
+   -- Interest accrued for the day on the balance
+   interest         decimal(19, 7) NOT NULL,
+   last_transfer_id int NOT NULL,
+   PRIMARY KEY (customer_id, account_no, business_date),
+   FOREIGN KEY (customer_id, account_no)
+      REFERENCES Accounts (customer_id, account_no)
+);
+
+-- Migrations applied to this schema, see sql/migrations.sql
+CREATE TABLE schema_version
+(
+   version     int,
+   description varchar(200) NOT NULL,
+   applied_at  datetime NOT NULL,
+   PRIMARY KEY (version)
+);
+
+INSERT INTO schema_version (version, description, applied_at)
+VALUES (1, 'Maintained account balances', NOW()),
+       (2, 'Indexes for transfer history by account and date', NOW()),
+       (3, 'Balance checkpoints', NOW()),
+       (4, 'Daily balances and interest', NOW());
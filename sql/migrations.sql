@@ -0,0 +1,83 @@
+-- -----------------------------------------------------------------------------------
+-- All schema migrations which are applied by the Java application (--migrate)
+-- Brings databases created with an older create.sql up to date
+-- -----------------------------------------------------------------------------------
+
+
+-- Applied migrations
+CREATE TABLE IF NOT EXISTS schema_version
+(
+   version     int,
+   description varchar(200) NOT NULL,
+   applied_at  datetime NOT NULL,
+   PRIMARY KEY (version)
+);
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- 1: Maintained account balances
+ALTER TABLE accounts ADD current_balance decimal(19, 7) NOT NULL DEFAULT 0 AFTER initial_balance;
+
+UPDATE accounts a
+SET current_balance = initial_balance
+   -- Incoming
+   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.receiver_id = a.customer_id
+      AND t.receiver_account = a.account_no)
+   -- Outgoing
+   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.sender_id = a.customer_id
+      AND t.sender_account = a.account_no);
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- 2: Indexes for transfer history by account and date
+CREATE INDEX transfers_sender_date ON transfers (sender_id, sender_account, execution_date);
+CREATE INDEX transfers_receiver_date ON transfers (receiver_id, receiver_account, execution_date);
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- 3: Balance checkpoints
+CREATE TABLE balance_checkpoints
+(
+   customer_id      int,
+   account_no       int,
+   -- Includes all transfers up to last_transfer_id, the last one executed up to as_of
+   as_of            datetime NOT NULL,
+   balance          decimal(19, 7) NOT NULL,
+   last_transfer_id int NOT NULL,
+   PRIMARY KEY (customer_id, account_no, as_of),
+   -- Latest round of checkpoints
+   INDEX balance_checkpoints_as_of (as_of),
+   FOREIGN KEY (customer_id, account_no)
+      REFERENCES accounts (customer_id, account_no)
+);
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- 4: Daily balances and interest
+CREATE TABLE daily_balances
+(
+   customer_id      int,
+   account_no       int,
+   business_date    date NOT NULL,
+   balance          decimal(19, 7) NOT NULL,
+   -- Interest accrued for the day on the balance
+   interest         decimal(19, 7) NOT NULL,
+   last_transfer_id int NOT NULL,
+   PRIMARY KEY (customer_id, account_no, business_date),
+   FOREIGN KEY (customer_id, account_no)
+      REFERENCES accounts (customer_id, account_no)
+);
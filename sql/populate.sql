@@ -30,15 +30,15 @@ VALUES ('Roxane Weavers', '78976 Almo Drive, North Bay Ontario P1A T7N', 'rweave
        ('Worth Rotherham', '763 Sherman Trail, Sylvan Lake Alberta T4S T4T', 'wrotherham1t@economist.com', '480-982-2219'),
        ('Wye Najara', '073 Hermina Lane, Olds Alberta T4H P7L', 'wnajara25@ning.com', '179-338-0077');
 
-INSERT INTO accounts (customer_id, account_no, currency, initial_balance)
-VALUES (1, 1, 'CAD', 523.21),
-       (1, 2, 'USD', 2934.12),
-       (2, 1, 'EUR', 10.32),
-       (3, 1, 'CAD', 14235.00),
-       (4, 1, 'CAD', 18900.32),
-       (4, 2, 'EUR', 25002.88),
-       (5, 1, 'USD', 239.12),
-       (5, 2, 'EUR', 521.01);
+INSERT INTO accounts (customer_id, account_no, currency, initial_balance, current_balance)
+VALUES (1, 1, 'CAD', 523.21, 523.21),
+       (1, 2, 'USD', 2934.12, 2934.12),
+       (2, 1, 'EUR', 10.32, 10.32),
+       (3, 1, 'CAD', 14235.00, 14235.00),
+       (4, 1, 'CAD', 18900.32, 18900.32),
+       (4, 2, 'EUR', 25002.88, 25002.88),
+       (5, 1, 'USD', 239.12, 239.12),
+       (5, 2, 'EUR', 521.01, 521.01);
 
 INSERT INTO transfers (sender_id, sender_account, receiver_id, receiver_account, amount, currency, execution_date, reference)
 VALUES (1, 1, 3, 1, 200, 'CAD', '2019-03-18 19:30:12', ''),
@@ -48,3 +48,20 @@ VALUES (1, 1, 3, 1, 200, 'CAD', '2019-03-18 19:30:12', ''),
        (4, 1, 5, 1, 1281.34, 'CAD', '2019-04-01 00:00:00', 'Rent'),
        (3, 1, 5, 1, 890.23, 'USD', '2019-04-02 12:34:35', ''),
        (4, 2, 4, 1, 7000, 'EUR', '2019-03-29 16:45:12', 'Transfer to other account');
+
+
+-- Bring current_balance in line with the transfers above
+UPDATE accounts a
+SET current_balance = initial_balance
+   -- Incoming
+   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.receiver_id = a.customer_id
+      AND t.receiver_account = a.account_no)
+   -- Outgoing
+   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.sender_id = a.customer_id
+      AND t.sender_account = a.account_no);
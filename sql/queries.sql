@@ -24,6 +24,20 @@ GROUP BY id, name, address, email, phone;
 -- -----------------------------------------------------------------------------------
 
 
+-- Get the next page of customers and numbers of associated accounts
+-- Continues after the last customer id of the previous page
+SELECT id, name, address, email, phone, COUNT(account_no)
+FROM customers
+LEFT JOIN accounts ON customers.id = accounts.customer_id
+WHERE id > ?
+GROUP BY id, name, address, email, phone
+ORDER BY id
+LIMIT ?;
+
+
+-- -----------------------------------------------------------------------------------
+
+
 -- Create a new customer
 INSERT INTO customers (name, address, email, phone)
 VALUES (?, ?, ?, ?);
@@ -32,6 +46,13 @@ VALUES (?, ?, ?, ?);
 -- -----------------------------------------------------------------------------------
 
 
+-- Get the id of the customer created last on this connection
+SELECT LAST_INSERT_ID();
+
+
+-- -----------------------------------------------------------------------------------
+
+
 -- Get a specific account
 SELECT *
 FROM accounts
@@ -42,15 +63,67 @@ AND account_no = ?;
 -- -----------------------------------------------------------------------------------
 
 
--- Get all accounts for a specific customer
-SELECT * FROM accounts
-WHERE customer_id = ?;
+-- Get the next page of all accounts and their current balances
+-- Continues after the primary key of the last account of the previous page
+SELECT customer_id, account_no, currency, initial_balance, current_balance
+FROM accounts
+WHERE customer_id > ?
+OR (customer_id = ? AND account_no > ?)
+ORDER BY customer_id, account_no
+LIMIT ?;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Get all accounts and their current balances for a specific customer
+SELECT customer_id, account_no, currency, initial_balance, current_balance
+FROM accounts
+WHERE customer_id = ?
+ORDER BY account_no;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Get all accounts and their current balances for many customers
+-- The number of placeholders matches the number of customers
+SELECT customer_id, account_no, currency, initial_balance, current_balance
+FROM accounts
+WHERE customer_id IN (?, ?, ...)
+ORDER BY customer_id, account_no;
 
 
 -- -----------------------------------------------------------------------------------
 
 
 -- Get account balance
+-- current_balance is maintained by every transfer, so this is a primary key lookup
+SELECT current_balance, currency
+FROM accounts
+WHERE customer_id = ?
+AND account_no = ?;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Apply a transfer to an account balance
+-- Runs in the same transaction as the transfer insert, once for the sender (negative amount)
+-- and once for the receiver (positive amount)
+UPDATE accounts
+SET current_balance = current_balance + ? * (SELECT rate
+                                             FROM exchangerates
+                                             WHERE from_currency = ?
+                                             AND to_currency = accounts.currency)
+WHERE customer_id = ?
+AND account_no = ?;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Find accounts whose current balance has drifted from their transfers
 -- balance = initial_balance + incoming - outgoing
 -- All transfers are converted to the account's currency
 --
@@ -58,44 +131,172 @@ WHERE customer_id = ?;
 --    - Account 4-1:
 --      18900.32 CAD + 2.57 EUR (3.87 CAD) + 7000 EUR (10550.05 CAD)
 --      - 1500.00 EUR (2260.73 CAD) - 1281.34 CAD = 25912.17 CAD
-SELECT initial_balance
+SELECT customer_id, account_no, currency, current_balance, computed_balance
+FROM (SELECT customer_id, account_no, currency, current_balance, initial_balance
+         -- Incoming
+         + (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+            FROM transfers t
+            JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+            WHERE t.receiver_id = a.customer_id
+            AND t.receiver_account = a.account_no)
+         -- Outgoing
+         - (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+            FROM transfers t
+            JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+            WHERE t.sender_id = a.customer_id
+            AND t.sender_account = a.account_no) as computed_balance
+      FROM accounts a) as x
+WHERE current_balance <> computed_balance;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Recompute all current balances from transfers
+UPDATE accounts a
+SET current_balance = initial_balance
    -- Incoming
-+ (SELECT IFNULL(SUM(x.amount * x.rate), 0)
-   FROM (SELECT t.amount, (SELECT rate
-                           FROM exchangerates
-                           WHERE from_currency = t.currency
-                           AND to_currency = (SELECT currency
-                                                FROM accounts
-                                                WHERE customer_id = ?
-                                                AND account_no = ?)
-                           ) as rate
-         FROM transfers t
-         WHERE receiver_id = ?
-         AND receiver_account = ?) as x)
+   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.receiver_id = a.customer_id
+      AND t.receiver_account = a.account_no)
    -- Outgoing
-- (SELECT IFNULL(SUM(x.amount * x.rate), 0)
-   FROM (SELECT t.amount, (SELECT rate
-                           FROM exchangerates
-                           WHERE from_currency = t.currency
-                           AND to_currency = (SELECT currency
-                                                FROM accounts
-                                                WHERE customer_id = ?
-                                                AND account_no = ?)
-                           ) as rate
-         FROM transfers t
-         WHERE sender_id = ?
-         AND sender_account = ?) as x) as balance, currency
-FROM accounts
+   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.sender_id = a.customer_id
+      AND t.sender_account = a.account_no);
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Get the latest balance checkpoint of an account up to a point in time
+-- A checkpoint includes all transfers up to its last_transfer_id
+SELECT balance, last_transfer_id
+FROM balance_checkpoints
 WHERE customer_id = ?
-AND account_no = ?;
+AND account_no = ?
+AND as_of <= ?
+ORDER BY as_of DESC
+LIMIT 1;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Get the balance of an account at a point in time
+-- Parameters: checkpoint balance (NULL without a checkpoint), then pairs of last transfer id and time, then the account
+-- Corrects the checkpoint by the transfers on either side of it, all bounds are constants so each sum is an index range
+SELECT IFNULL(?, a.initial_balance)
+   -- Incoming after the checkpoint, executed up to the time
+   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.receiver_id = a.customer_id
+      AND t.receiver_account = a.account_no
+      AND t.id > ?
+      AND t.execution_date <= ?)
+   -- Incoming included in the checkpoint, executed after the time
+   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.receiver_id = a.customer_id
+      AND t.receiver_account = a.account_no
+      AND t.execution_date > ?
+      AND t.id <= ?)
+   -- Outgoing after the checkpoint, executed up to the time
+   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.sender_id = a.customer_id
+      AND t.sender_account = a.account_no
+      AND t.id > ?
+      AND t.execution_date <= ?)
+   -- Outgoing included in the checkpoint, executed after the time
+   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)
+      FROM transfers t
+      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency
+      WHERE t.sender_id = a.customer_id
+      AND t.sender_account = a.account_no
+      AND t.execution_date > ?
+      AND t.id <= ?) as balance,
+   a.currency
+FROM accounts a
+WHERE a.customer_id = ?
+AND a.account_no = ?;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Get the time and last transfer of the latest round of checkpoints
+SELECT as_of, last_transfer_id
+FROM balance_checkpoints
+ORDER BY as_of DESC
+LIMIT 1;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Get the last transfer executed up to the time of a new checkpoint
+-- Reads backwards from the newest transfer
+SELECT id
+FROM transfers
+WHERE id > ?
+AND execution_date <= ?
+ORDER BY id DESC
+LIMIT 1;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Store the end of day balance and interest of an account, replacing an earlier run for the same date
+INSERT INTO daily_balances (customer_id, account_no, business_date, balance, interest, last_transfer_id)
+VALUES (?, ?, ?, ?, ?, ?)
+ON DUPLICATE KEY UPDATE balance = VALUES(balance), interest = VALUES(interest),
+   last_transfer_id = VALUES(last_transfer_id);
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Write a new round of balance checkpoints
+-- Parameters: as of, last transfer id, previous as of, then (previous, last transfer id] twice
+-- Adds the transfers since the previous round, read as one primary key range, to the previous checkpoints
+INSERT INTO balance_checkpoints (customer_id, account_no, as_of, balance, last_transfer_id)
+SELECT a.customer_id, a.account_no, ?, IFNULL(c.balance, a.initial_balance) + IFNULL(d.delta, 0), ?
+FROM accounts a
+LEFT JOIN balance_checkpoints c ON c.customer_id = a.customer_id
+   AND c.account_no = a.account_no
+   AND c.as_of = ?
+LEFT JOIN (
+   SELECT m.customer_id, m.account_no, SUM(m.amount * r.rate) AS delta
+   FROM (
+      SELECT receiver_id AS customer_id, receiver_account AS account_no, amount, currency
+      FROM transfers
+      WHERE id > ? AND id <= ?
+      UNION ALL
+      SELECT sender_id, sender_account, -amount, currency
+      FROM transfers
+      WHERE id > ? AND id <= ?
+   ) m
+   JOIN accounts ma ON ma.customer_id = m.customer_id AND ma.account_no = m.account_no
+   JOIN exchangerates r ON r.from_currency = m.currency AND r.to_currency = ma.currency
+   GROUP BY m.customer_id, m.account_no
+) d ON d.customer_id = a.customer_id AND d.account_no = a.account_no;
 
 
 -- -----------------------------------------------------------------------------------
 
 
 -- Create a new account
-INSERT INTO accounts (customer_id, account_no, currency, initial_balance)
-VALUES (?, ?, ?, ?);
+-- The current balance starts out as the initial balance
+INSERT INTO accounts (customer_id, account_no, currency, initial_balance, current_balance)
+VALUES (?, ?, ?, ?, ?);
 
 
 -- -----------------------------------------------------------------------------------
@@ -119,10 +320,67 @@ ORDER BY execution_date ASC;
 -- -----------------------------------------------------------------------------------
 
 
+-- Get the next page of incoming and outgoing transfers for a specific account
+-- Continues after the execution date and id of the last transfer of the previous page,
+-- the upper date limit is exclusive
+-- Each branch can read its page from the (account, execution_date) index on its own
+SELECT t.id,
+       t.sender_id, t.sender_account, s.name as sender_name,
+       t.receiver_id, t.receiver_account, r.name as receiver_name,
+       t.amount, t.currency, t.execution_date, t.reference
+       -- Outgoing
+FROM ((SELECT * FROM transfers
+       WHERE sender_id = ? AND sender_account = ?
+       AND (execution_date > ? OR (execution_date = ? AND id > ?))
+       AND execution_date < ?
+       ORDER BY execution_date, id
+       LIMIT ?)
+      UNION ALL
+      -- Incoming, transfers to the same account are already outgoing
+      (SELECT * FROM transfers
+       WHERE receiver_id = ? AND receiver_account = ?
+       AND NOT (sender_id = ? AND sender_account = ?)
+       AND (execution_date > ? OR (execution_date = ? AND id > ?))
+       AND execution_date < ?
+       ORDER BY execution_date, id
+       LIMIT ?)) as t
+JOIN customers s ON t.sender_id = s.id
+JOIN customers r ON t.receiver_id = r.id
+ORDER BY t.execution_date, t.id
+LIMIT ?;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Get the next page of all transfers up to an id
+-- Continues after the id of the last transfer of the previous page
+SELECT id, sender_id, sender_account, receiver_id, receiver_account,
+   amount, currency, execution_date, reference
+FROM transfers
+WHERE id > ? AND id <= ?
+ORDER BY id
+LIMIT ?;
+
+
+-- -----------------------------------------------------------------------------------
+
+
+-- Get the highest transfer id
+-- Read from the end of the primary key
+SELECT IFNULL(MAX(id), 0) FROM transfers;
+
+
+-- -----------------------------------------------------------------------------------
+
+
 -- Make wire transfer
-INSERT INTO transfers(sender_id, sender_account, receiver_id, receiver_account,
+-- Runs in one transaction together with the two balance updates above
+-- Bulk transfers send this and the balance update as JDBC batches, one transaction per batch
+-- A NULL id is generated by the database, the ledger engine assigns ids itself
+INSERT INTO transfers(id, sender_id, sender_account, receiver_id, receiver_account,
                   amount, currency, execution_date, reference)
-VALUES (?, ?, ?, ?, ?, ?, ?, ?);
+VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);
 
 
 -- -----------------------------------------------------------------------------------
@@ -135,8 +393,6 @@ SELECT code, name FROM currencies;
 -- -----------------------------------------------------------------------------------
 
 
--- Convert amount of money between currencies
-SELECT ? * rate
-FROM exchangerates
-WHERE from_currency = ?
-AND to_currency = ?;
+-- Get all exchange rates
+-- Loaded into memory, amounts are converted in the application
+SELECT from_currency, to_currency, rate FROM exchangerates;
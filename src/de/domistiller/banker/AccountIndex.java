@@ -0,0 +1,121 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+
+import java.util.Arrays;
+
+/**
+ * Maps packed account keys (see Account.Reference.key) to dense slots 0, 1, 2, ...
+ * Account state such as balances or currencies is kept by the owner in primitive arrays indexed by slot,
+ * so looking up an account allocates nothing and touches only a few cache lines
+ * Open addressing with linear probing over parallel key and slot arrays, accounts are never removed
+ * Not thread-safe, writes must be synchronized with all other accesses by the owner
+ */
+class AccountIndex {
+
+    // Table is at most half full, which keeps probe sequences short
+    private final static int MAX_LOAD_PERCENT = 50;
+
+    private long[] tableKeys;
+    // Slot + 1, 0 marks an empty entry
+    private int[] tableSlots;
+    private int mask;
+
+    // Keys in slot order, for iterating over all accounts
+    private long[] keys;
+    private int size;
+
+    AccountIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * (100 / MAX_LOAD_PERCENT)) - 1) << 1;
+        tableKeys = new long[capacity];
+        tableSlots = new int[capacity];
+        mask = capacity - 1;
+        keys = new long[Math.max(16, expectedSize)];
+    }
+
+    /**
+     * @return The slot of the account or -1 if it is not in the index
+     */
+    int find(long key) {
+        for (int i = (int) mix(key) & mask; ; i = (i + 1) & mask) {
+            int slot = tableSlots[i];
+            if (slot == 0) {
+                return -1;
+            }
+            if (tableKeys[i] == key) {
+                return slot - 1;
+            }
+        }
+    }
+
+    int find(Account.Reference ref) {
+        return find(ref.key());
+    }
+
+    /**
+     * Get the slot of an account, adding it with the next free slot if it is not in the index
+     */
+    int add(long key) {
+        int i = (int) mix(key) & mask;
+        for (; tableSlots[i] != 0; i = (i + 1) & mask) {
+            if (tableKeys[i] == key) {
+                return tableSlots[i] - 1;
+            }
+        }
+
+        int slot = size++;
+        if (slot == keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        keys[slot] = key;
+        tableKeys[i] = key;
+        tableSlots[i] = slot + 1;
+
+        if (size * 100L > (mask + 1L) * MAX_LOAD_PERCENT) {
+            rehash((mask + 1) * 2);
+        }
+        return slot;
+    }
+
+    /**
+     * @return The packed key of the account in the slot
+     */
+    long key(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Number of accounts, all slots are below this
+     */
+    int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        tableKeys = new long[capacity];
+        tableSlots = new int[capacity];
+        mask = capacity - 1;
+
+        for (int slot = 0; slot < size; slot++) {
+            int i = (int) mix(keys[slot]) & mask;
+            while (tableSlots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            tableKeys[i] = keys[slot];
+            tableSlots[i] = slot + 1;
+        }
+    }
+
+    /**
+     * Spread the bits of a packed key over the whole long, consecutive keys differ only in their lowest bits
+     * Finalizer of MurmurHash3
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,178 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process locks for accounts
+ * Accounts are spread over a fixed number of lock stripes, so unrelated accounts almost never share a lock
+ * Time spent waiting for contended locks is recorded to find hot accounts
+ */
+class AccountLocks {
+
+    // Number of hot accounts listed in the statistics
+    private final static int HOT_ACCOUNTS = 5;
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    // Only filled on contention, so uncontended accounts cost nothing here
+    private final Map<Account.Reference, LongAdder> contendedAccounts = new ConcurrentHashMap<>();
+
+    /**
+     * @param stripes Number of locks, rounded up to the next power of two
+     */
+    AccountLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Lock both accounts of a transfer
+     * Stripes are always locked in ascending order, so two transfers between the same accounts cannot deadlock
+     */
+    void lock(Account.Reference a, Account.Reference b) {
+        int i = stripe(a);
+        int j = stripe(b);
+
+        if (i == j) {
+            lock(i, a);
+        } else if (i < j) {
+            lock(i, a);
+            lock(j, b);
+        } else {
+            lock(j, b);
+            lock(i, a);
+        }
+    }
+
+    void unlock(Account.Reference a, Account.Reference b) {
+        int i = stripe(a);
+        int j = stripe(b);
+
+        stripes[i].unlock();
+        if (i != j) {
+            stripes[j].unlock();
+        }
+    }
+
+    /**
+     * Lock all accounts of many transfers, e.g. for making them in one transaction
+     * Stripes are locked in ascending order like in lock, so this cannot deadlock with single transfers
+     * @return The locked stripes, to be passed to unlockAll
+     */
+    int[] lockAll(Collection<Account.Reference> accounts) {
+        long[] keys = new long[accounts.size()];
+        // Stripe in the upper half, position in keys in the lower half
+        long[] byStripe = new long[keys.length];
+        int n = 0;
+        for (Account.Reference account : accounts) {
+            keys[n] = account.key();
+            byStripe[n] = ((long) stripe(keys[n]) << 32) | n;
+            n++;
+        }
+        Arrays.sort(byStripe);
+
+        int[] locked = new int[n];
+        int count = 0;
+        for (long entry : byStripe) {
+            int stripe = (int) (entry >>> 32);
+            if (count == 0 || locked[count - 1] != stripe) {
+                lock(stripe, Account.Reference.fromKey(keys[(int) entry]));
+                locked[count++] = stripe;
+            }
+        }
+        return Arrays.copyOf(locked, count);
+    }
+
+    void unlockAll(int[] locked) {
+        for (int stripe : locked) {
+            stripes[stripe].unlock();
+        }
+    }
+
+    private void lock(int stripe, Account.Reference account) {
+        acquisitions.increment();
+        ReentrantLock lock = stripes[stripe];
+        if (lock.tryLock()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        lock.lock();
+        long waited = System.nanoTime() - start;
+
+        contended.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        contendedAccounts.computeIfAbsent(account, k -> new LongAdder()).increment();
+    }
+
+    private int stripe(Account.Reference account) {
+        return stripe(account.key());
+    }
+
+    private int stripe(long key) {
+        // Spread the key bits so consecutive account numbers land on different stripes
+        return (int) AccountIndex.mix(key) & mask;
+    }
+
+    long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    long getContended() {
+        return contended.sum();
+    }
+
+    long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * Accounts whose locks were contended most often, most contended first
+     */
+    List<Account.Reference> getHotAccounts(int limit) {
+        List<Map.Entry<Account.Reference, LongAdder>> entries = new ArrayList<>(contendedAccounts.entrySet());
+        entries.sort((x, y) -> Long.compare(y.getValue().sum(), x.getValue().sum()));
+
+        List<Account.Reference> hot = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            hot.add(entries.get(i).getKey());
+        }
+        return hot;
+    }
+
+    @Override
+    public String toString() {
+        long contended = getContended();
+        return String.format("%d account locks acquired, %d contended, %.3f ms average wait, %.3f ms maximum wait, "
+                        + "hot accounts %s",
+                getAcquisitions(),
+                contended,
+                contended == 0 ? 0.0 : getWaitNanos() / 1e6 / contended,
+                getMaxWaitNanos() / 1e6,
+                getHotAccounts(HOT_ACCOUNTS));
+    }
+}
@@ -0,0 +1,129 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Customer;
+import de.domistiller.banker.model.Transfer;
+
+import java.io.Closeable;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking facade over the Database or another engine, so that callers can run independent queries in parallel
+ * Every call runs the blocking method on a virtual thread when the JDK has them (Java 21 and later),
+ * otherwise on a fixed pool of platform threads
+ * Futures complete with what the blocking method returns, including null or false on errors
+ * At most as many calls run at once as the connection pool has connections, the others wait for a permit
+ */
+class AsyncDatabase implements Closeable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final Backend backend;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    /**
+     * @param maxConcurrency Maximum number of calls running at the same time, usually the connection pool size
+     */
+    AsyncDatabase(Backend backend, int maxConcurrency) {
+        this.backend = backend;
+        permits = new Semaphore(maxConcurrency);
+        executor = createExecutor("banker-async", maxConcurrency);
+    }
+
+    /**
+     * Executor running every task on a new virtual thread, or on a fixed pool of daemon threads before Java 21
+     * Virtual threads are looked up by reflection, so that this still compiles and runs on Java 8
+     */
+    static ExecutorService createExecutor(String name, int threads) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info(name + " runs on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    CompletableFuture<Customer> getCustomer(int id) {
+        return call(() -> backend.getCustomer(id));
+    }
+
+    CompletableFuture<List<Account>> getAccounts(int customerId) {
+        return call(() -> backend.getAccountsWithBalances(customerId));
+    }
+
+    CompletableFuture<Account> getAccount(Account.Reference ref) {
+        return call(() -> backend.getAccount(ref));
+    }
+
+    CompletableFuture<Amount> getAccountBalance(Account.Reference ref) {
+        return call(() -> backend.getAccountBalance(ref));
+    }
+
+    /**
+     * @return All transfers of the account ordered by execution date, or null if they could not all be fetched
+     */
+    CompletableFuture<List<Transfer>> getTransfers(Account.Reference ref, LocalDateTime from, LocalDateTime to) {
+        return call(() -> {
+            List<Transfer> list = new ArrayList<>();
+            return backend.forEachTransfer(ref, from, to, list::add) ? list : null;
+        });
+    }
+
+    /**
+     * Make the transfer only if the sender's balance covers it
+     * With group commit, the Database completes the future itself and no thread waits for the commit
+     */
+    CompletableFuture<TransferResult> makeTransfer(Transfer t) {
+        if (backend instanceof Database && ((Database) backend).isGroupCommitEnabled()) {
+            return ((Database) backend).submitTransfer(t);
+        }
+        return call(() -> backend.makeCheckedTransfer(t));
+    }
+
+    CompletableFuture<Amount> convertCurrency(Amount from, String toCurrency) {
+        return call(() -> backend.convertCurrency(from, toCurrency));
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<T> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                return operation.get();
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    /**
+     * Wait for running calls, the backend is not closed
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Customer;
+import de.domistiller.banker.model.Transfer;
+
+import java.io.Closeable;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Operations of the bank as used by Banker and Input
+ * Served either by the Database directly or from memory by the Ledger, see the engine setting
+ */
+interface Backend extends Closeable {
+
+    List<String> getCurrencies();
+
+    /**
+     * @return The customer or null if it does not exist
+     */
+    Customer getCustomer(int id);
+
+    /**
+     * Pass all customers to the consumer, ordered by id
+     * @return Whether all customers could be fetched
+     */
+    boolean forEachCustomer(Consumer<Customer> consumer);
+
+    /**
+     * Sets the id of the customer if it was created
+     */
+    boolean createCustomer(Customer c);
+
+    /**
+     * @return The account without balance or null if it does not exist
+     */
+    Account getAccount(Account.Reference ref);
+
+    List<Account> getAccountsWithBalances(int customerId);
+
+    boolean createAccount(Account a);
+
+    /**
+     * @return The balance in the account's currency or null if the account does not exist
+     */
+    Amount getAccountBalance(Account.Reference ref);
+
+    /**
+     * Pass all transfers of an account to the consumer, ordered by execution date
+     * @param from Earliest execution date (inclusive), null for no limit
+     * @param to Latest execution date (exclusive), null for no limit
+     * @return Whether all transfers could be fetched
+     */
+    boolean forEachTransfer(Account.Reference ref, LocalDateTime from, LocalDateTime to, Consumer<Transfer> consumer);
+
+    /**
+     * Make the transfer only if the sender's balance covers it
+     */
+    TransferResult makeCheckedTransfer(Transfer t);
+
+    /**
+     * @return The converted amount or null if there is no exchange rate
+     */
+    Amount convertCurrency(Amount from, String toCurrency);
+
+    @Override
+    void close();
+}
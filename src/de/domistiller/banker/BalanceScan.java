@@ -0,0 +1,288 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
+import de.domistiller.banker.model.Transfer;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Balances of all accounts computed in one pass over the transfers, instead of one query per account
+ * The range of transfer ids is split into slices which workers claim one at a time, every worker adds up
+ * debits and credits in its own arrays indexed by account slot, which are summed up once all slices are done
+ * Transfers are converted into the account's currency with the exchange rates at the start of the scan
+ * All amounts are exact units of Amount.SCALE
+ * Transfers which cannot be counted are reported as problems with their ids, the scan continues without them
+ */
+class BalanceScan {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    // Slices per worker, so that workers finishing early can take over from slow ones
+    private final static int SLICES_PER_WORKER = 8;
+    // Problems reported per worker, the rest are only counted
+    private final static int MAX_PROBLEMS = 100;
+
+    private final Database db;
+    private final int threads;
+
+    // Accounts in the order returned by the database
+    private final AccountIndex accounts = new AccountIndex(1024);
+    private long[] initialBalances = new long[1024];
+    // Balances maintained by the database when the accounts were read
+    private long[] servedBalances = new long[1024];
+    private int[] currencies = new int[1024];
+
+    // Results, indexed by slot
+    private long[] debits;
+    private long[] credits;
+    // Converted debits and credits of transfers between accounts in different currencies, by account currency
+    private long[] crossOutflows;
+    private long[] crossInflows;
+    private int lastTransferId;
+    private long transfers;
+    private long skipped;
+    private long problemCount;
+    private final List<String> problems = new ArrayList<>();
+
+    BalanceScan(Database db, Properties settings) {
+        this.db = db;
+        threads = Integer.parseInt(settings.getProperty("scan.threads",
+                Integer.toString(Math.min(db.getMaxConnections(), Runtime.getRuntime().availableProcessors()))));
+    }
+
+    /**
+     * Per worker sums, only touched by the worker owning them
+     */
+    private static final class Sums {
+        private final long[] debits;
+        private final long[] credits;
+        private final long[] crossOutflows;
+        private final long[] crossInflows;
+        private long transfers;
+        private long skipped;
+        private long problemCount;
+        private final List<String> problems = new ArrayList<>();
+        // Range of transfers which could not be read, null if there was none
+        private String error;
+
+        private Sums(int accounts, int currencies) {
+            debits = new long[accounts];
+            credits = new long[accounts];
+            crossOutflows = new long[currencies];
+            crossInflows = new long[currencies];
+        }
+    }
+
+    /**
+     * Scan all transfers up to the highest id when the scan starts
+     * The id is read before the accounts, so their maintained balances include every transfer of the scan
+     * and transfers made in between have a higher id
+     * @param before Only transfers executed before this are counted, null for all
+     * @return Whether all transfers could be read and counted
+     */
+    boolean run(LocalDateTime before) {
+        lastTransferId = db.getLastTransferId();
+        if (lastTransferId < 0 || !loadAccounts()) {
+            return false;
+        }
+        ExchangeRates.Snapshot rates = db.getRates();
+
+        int slices = threads * SLICES_PER_WORKER;
+        long sliceSize = Math.max(1, ((long) lastTransferId + slices - 1) / slices);
+        AtomicInteger nextSlice = new AtomicInteger();
+        int size = accounts.size();
+        int currencyCount = Currencies.count();
+
+        ExecutorService executor = AsyncDatabase.createExecutor("banker-balance-scan", threads);
+        List<CompletableFuture<Sums>> workers = new ArrayList<>(threads);
+        for (int w = 0; w < threads; w++) {
+            workers.add(CompletableFuture.supplyAsync(() -> {
+                Sums sums = new Sums(size, currencyCount);
+                for (int slice; sums.error == null && (slice = nextSlice.getAndIncrement()) < slices; ) {
+                    int afterId = (int) Math.min(lastTransferId, slice * sliceSize);
+                    int toId = (int) Math.min(lastTransferId, (slice + 1) * sliceSize);
+                    if (afterId < toId && !db.forEachTransfer(afterId, toId, t -> add(t, before, rates, sums))) {
+                        sums.error = "could not read transfers " + (afterId + 1) + " to " + toId;
+                    }
+                }
+                return sums;
+            }, executor));
+        }
+
+        debits = new long[size];
+        credits = new long[size];
+        crossOutflows = new long[currencyCount];
+        crossInflows = new long[currencyCount];
+        boolean success = true;
+        for (CompletableFuture<Sums> worker : workers) {
+            Sums sums = worker.join();
+            if (sums.error != null) {
+                log.severe("error scanning balances: " + sums.error);
+                success = false;
+            }
+            for (int slot = 0; slot < size; slot++) {
+                debits[slot] = Amount.add(debits[slot], sums.debits[slot]);
+                credits[slot] = Amount.add(credits[slot], sums.credits[slot]);
+            }
+            for (int c = 0; c < currencyCount; c++) {
+                crossOutflows[c] = Amount.add(crossOutflows[c], sums.crossOutflows[c]);
+                crossInflows[c] = Amount.add(crossInflows[c], sums.crossInflows[c]);
+            }
+            transfers += sums.transfers;
+            skipped += sums.skipped;
+            problemCount += sums.problemCount;
+            problems.addAll(sums.problems);
+        }
+        executor.shutdown();
+
+        log.info("scanned " + transfers + " transfers up to id " + lastTransferId + " for "
+                + size + " accounts, skipped " + skipped + " executed later and " + problemCount + " with problems");
+        for (String problem : problems) {
+            log.warning(problem);
+        }
+        return success && problemCount == 0;
+    }
+
+    private boolean loadAccounts() {
+        return db.forEachAccount(a -> {
+            int slot = accounts.add(a.getRef().key());
+            if (slot == initialBalances.length) {
+                initialBalances = Arrays.copyOf(initialBalances, slot * 2);
+                servedBalances = Arrays.copyOf(servedBalances, slot * 2);
+                currencies = Arrays.copyOf(currencies, slot * 2);
+            }
+            initialBalances[slot] = a.getInitialBalance().getUnits();
+            servedBalances[slot] = a.getCurrentBalance().getUnits();
+            currencies[slot] = a.getInitialBalance().getCurrencyId();
+        });
+    }
+
+    private void add(Transfer t, LocalDateTime before, ExchangeRates.Snapshot rates, Sums sums) {
+        if (sums.error != null) {
+            return;
+        }
+        if (before != null && !t.getExecutionDate().isBefore(before)) {
+            sums.skipped++;
+            return;
+        }
+
+        int sender = accounts.find(t.getSender().key());
+        int receiver = accounts.find(t.getReceiver().key());
+        if (sender < 0 || receiver < 0) {
+            problem(sums, t, "between unknown accounts " + t.getSender() + " and " + t.getReceiver());
+            return;
+        }
+
+        long units = t.getAmount().getUnits();
+        if (units <= 0) {
+            problem(sums, t, "with amount " + t.getAmount() + " which is not positive");
+            return;
+        }
+        int currency = t.getAmount().getCurrencyId();
+        long senderRate = rates.rate(currency, currencies[sender]);
+        long receiverRate = rates.rate(currency, currencies[receiver]);
+        if (senderRate == ExchangeRates.Snapshot.NO_RATE || receiverRate == ExchangeRates.Snapshot.NO_RATE) {
+            problem(sums, t, "without exchange rate from " + t.getAmount().getCurrency());
+            return;
+        }
+
+        long debit = Amount.convert(units, senderRate);
+        long credit = Amount.convert(units, receiverRate);
+        sums.debits[sender] = Amount.add(sums.debits[sender], debit);
+        sums.credits[receiver] = Amount.add(sums.credits[receiver], credit);
+        // Transfers within one currency leave its total unchanged and are not counted here
+        int senderCurrency = currencies[sender];
+        int receiverCurrency = currencies[receiver];
+        if (senderCurrency != receiverCurrency) {
+            sums.crossOutflows[senderCurrency] = Amount.add(sums.crossOutflows[senderCurrency], debit);
+            sums.crossInflows[receiverCurrency] = Amount.add(sums.crossInflows[receiverCurrency], credit);
+        }
+        sums.transfers++;
+    }
+
+    private static void problem(Sums sums, Transfer t, String description) {
+        if (sums.problems.size() < MAX_PROBLEMS) {
+            sums.problems.add("transfer " + t.getId() + " " + description);
+        }
+        sums.problemCount++;
+    }
+
+    int size() {
+        return accounts.size();
+    }
+
+    long key(int slot) {
+        return accounts.key(slot);
+    }
+
+    int currency(int slot) {
+        return currencies[slot];
+    }
+
+    long initialBalance(int slot) {
+        return initialBalances[slot];
+    }
+
+    /**
+     * @return Balance maintained by the database, in units of the account's currency
+     */
+    long servedBalance(int slot) {
+        return servedBalances[slot];
+    }
+
+    long debits(int slot) {
+        return debits[slot];
+    }
+
+    long credits(int slot) {
+        return credits[slot];
+    }
+
+    /**
+     * @return Initial balance plus credits minus debits, in units of the account's currency
+     */
+    long balance(int slot) {
+        return Amount.subtract(Amount.add(initialBalances[slot], credits[slot]), debits[slot]);
+    }
+
+    /**
+     * @return Converted credits minus debits of transfers between accounts of the currency and other currencies
+     */
+    long crossCurrencyNet(int currency) {
+        return currency < crossInflows.length ? Amount.subtract(crossInflows[currency], crossOutflows[currency]) : 0;
+    }
+
+    /**
+     * @return Highest transfer id included in the scan
+     */
+    int getLastTransferId() {
+        return lastTransferId;
+    }
+
+    long getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * @return Number of transfers which could not be counted
+     */
+    long getProblemCount() {
+        return problemCount;
+    }
+
+    /**
+     * @return Descriptions of the first problems, with the ids of the transfers
+     */
+    List<String> getProblems() {
+        return problems;
+    }
+}
@@ -5,8 +5,14 @@ import de.domistiller.banker.model.Amount;
 import de.domistiller.banker.model.Customer;
 import de.domistiller.banker.model.Transfer;
 
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Formatter;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -17,6 +23,10 @@ public class Banker {
     private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
     private Database db;
+    // Serves the interactive operations, see the engine setting
+    private Backend backend;
+    // For running independent queries in parallel
+    private AsyncDatabase async;
     private Input input;
 
     private Properties settings;
@@ -24,15 +34,17 @@ public class Banker {
     public Banker(Properties settings) {
         this.settings = settings;
 
-        db = new Database(
-                settings.getProperty("dbserver"),
-                settings.getProperty("dbuser"),
-                settings.getProperty("dbpassword"),
-                settings.getProperty("dbname"));
-        input = new Input(db);
+        db = new Database(settings);
+        if (Boolean.parseBoolean(settings.getProperty("migrate", "false")) && !db.migrate()) {
+            System.out.println("Could not migrate database schema");
+            System.exit(-1);
+        }
     }
 
     public void start() {
+        backend = createBackend();
+        async = new AsyncDatabase(backend, db.getMaxConnections());
+        input = new Input(backend);
         System.out.println("Welcome to Banker!");
 
         Input.MenuChoice choice;
@@ -74,7 +86,209 @@ public class Banker {
             printSeparator('#');
         } while(choice != Input.MenuChoice.EXIT);
 
+        async.close();
+        backend.close();
+    }
+
+    /**
+     * Serve the operations over HTTP instead of the console, until the process is stopped
+     */
+    public void serve() {
+        backend = createBackend();
+
+        async = new AsyncDatabase(backend, db.getMaxConnections());
+
+        Server server;
+        BinaryServer binaryServer = null;
+        try {
+            server = new Server(backend, db, settings);
+            if (Integer.parseInt(settings.getProperty("binary.port", "0")) > 0) {
+                binaryServer = new BinaryServer(backend, async, settings);
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "error starting server", e);
+            backend.close();
+            System.out.println("Could not start server");
+            System.exit(-1);
+            return;
+        }
+
+        // The server's own thread keeps the process running
+        BinaryServer binary = binaryServer;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            if (binary != null) {
+                binary.close();
+            }
+            async.close();
+            backend.close();
+        }, "banker-shutdown"));
+        System.out.println("Banker is listening on http://" + server.getAddress().getHostString()
+                + ":" + server.getAddress().getPort());
+        if (binary != null) {
+            try {
+                System.out.println("Binary transfers are accepted on port " + binary.getAddress().getPort());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "error getting binary server address", e);
+            }
+        }
+    }
+
+    /**
+     * The database itself, or the in-memory ledger or transfer pipeline in front of it
+     */
+    private Backend createBackend() {
+        String engine = settings.getProperty("engine", "database");
+        switch (engine) {
+            case "database":
+                return db;
+            case "ledger":
+                return new Ledger(db, settings);
+            case "pipeline":
+                return new TransferPipeline(db, settings);
+            default:
+                throw new IllegalArgumentException("unknown engine " + engine);
+        }
+    }
+
+    /**
+     * Make the transfers listed in files, see TransferBatch for their format
+     * Exits with a non-zero status if a file could not be processed
+     */
+    public void runBatch(List<String> files) {
+        backend = createBackend();
+        boolean success = new TransferBatch(db, backend, settings).run(files);
+        backend.close();
+
+        if (!success) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Create the customers and accounts listed in files, see CustomerImport for their format
+     * Exits with a non-zero status if a file could not be processed
+     */
+    public void importCustomers(List<String> files) {
+        boolean success = new CustomerImport(db, settings).run(files);
+        db.close();
+
+        if (!success) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Write the statements of all accounts for a month, see StatementRun
+     * Exits with a non-zero status if any statement could not be written
+     */
+    public void writeStatements(YearMonth month) {
+        boolean success = new StatementRun(db, settings).run(month);
         db.close();
+
+        if (!success) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compute and store the closing balances and daily interest of all accounts, see EndOfDay
+     * Exits with a non-zero status if they could not be stored
+     */
+    public void runEndOfDay(LocalDate date) {
+        boolean success = new EndOfDay(db, settings).run(date);
+        db.close();
+
+        if (!success) {
+            System.out.println("Could not complete end of day " + date);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Check all maintained balances and their totals per currency against a recomputation, see Reconciliation
+     * Exits with a non-zero status if anything does not match, so that it can be used in scheduled jobs
+     */
+    public void reconcile() {
+        boolean success = new Reconciliation(db, settings).run();
+        db.close();
+
+        if (!success) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Check the maintained account balances against the transfers
+     * Exits with a non-zero status if the balances could not be checked or rebuilt
+     * @param rebuild Whether to recompute the balances if any of them have drifted
+     */
+    public void verifyBalances(boolean rebuild) {
+        List<Account.Reference> drifted = db.verifyAccountBalances();
+        boolean success = drifted != null;
+
+        if (drifted == null) {
+            System.out.println("Could not verify account balances");
+        } else if (drifted.isEmpty()) {
+            System.out.println("All account balances are consistent with their transfers");
+        } else {
+            System.out.println(drifted.size() + " account balances have drifted:");
+            for (Account.Reference ref : drifted) {
+                System.out.println("  " + ref);
+            }
+
+            if (rebuild) {
+                success = db.rebuildAccountBalances();
+                System.out.println(success ? "Rebuilt account balances from transfers"
+                        : "Could not rebuild account balances");
+            }
+        }
+
+        db.close();
+        if (!success) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Bring the database schema up to date
+     */
+    public void migrate() {
+        boolean success = db.migrate();
+        db.close();
+
+        if (!success) {
+            System.out.println("Could not migrate database schema");
+            System.exit(-1);
+        }
+        System.out.println("Database schema is up to date");
+    }
+
+    /**
+     * Write balance checkpoints for all accounts, e.g. from a scheduled job
+     */
+    public void checkpointBalances() {
+        boolean success = db.checkpointBalances();
+        db.close();
+
+        if (!success) {
+            System.out.println("Could not write balance checkpoints");
+            System.exit(-1);
+        }
+        System.out.println("Balance checkpoints are up to date");
+    }
+
+    /**
+     * Check the query plans of all statements for full table scans
+     * Exits with a non-zero status if any are found, so that it can be used in build pipelines
+     */
+    public void checkPlans() {
+        boolean success = new PlanCheck(db).run();
+        db.close();
+
+        if (!success) {
+            System.exit(1);
+        }
     }
 
     private void listCustomers() {
@@ -82,8 +296,9 @@ public class Banker {
         System.out.println("ID   NAME                     NO. OF ACCOUNTS     EMAIL                              PHONE             ADDRESS");
         printSeparator();
 
-        List<Customer> customers = db.getCustomers();
-        for (Customer c : customers) {
+        // Customers are printed as they are streamed from the database
+        int[] count = {0};
+        backend.forEachCustomer(c -> {
             System.out.printf(
                     "%-4d %-20s     %-15d     %-30s     %-13s     %s\n",
                     c.getId(),
@@ -93,15 +308,16 @@ public class Banker {
                     c.getPhone(),
                     c.getAddress()
             );
-        }
+            count[0]++;
+        });
 
         System.out.println();
-        System.out.println(customers.size() + " customers found");
+        System.out.println(count[0] + " customers found");
     }
 
     private void createCustomer() {
         Customer customer = input.getNewCustomer();
-        boolean success = db.createCustomer(customer);
+        boolean success = backend.createCustomer(customer);
 
         System.out.println();
         if (success) {
@@ -113,7 +329,8 @@ public class Banker {
 
     private void listAccounts() {
         int customerId = input.getCustomerId();
-        Customer customer = db.getCustomer(customerId);
+        CompletableFuture<List<Account>> accountsFuture = async.getAccounts(customerId);
+        Customer customer = async.getCustomer(customerId).join();
 
         System.out.println();
         System.out.println("ACCOUNTS FOR CUSTOMER " + customer.getName() + " (ID " + customer.getId() + ")\n");
@@ -121,13 +338,13 @@ public class Banker {
         System.out.println("ACCOUNT NO.      INITIAL BALANCE      CURRENT BALANCE");
         printSeparator();
 
-        List<Account> accounts = db.getAccounts(customerId);
+        List<Account> accounts = accountsFuture.join();
         for (Account a : accounts) {
             System.out.printf(
                     "%-11s      %-15s      %-15s\n",
                     a.getRef(),
                     a.getInitialBalance(),
-                    db.getAccountBalance(a.getRef())
+                    a.getCurrentBalance()
             );
         }
 
@@ -137,7 +354,7 @@ public class Banker {
 
     private void createAccount() {
         Account account = input.getNewAccount();
-        boolean success = db.createAccount(account);
+        boolean success = backend.createAccount(account);
 
         System.out.println();
 
@@ -150,28 +367,29 @@ public class Banker {
 
     private void showBankStatement() {
         Account.Reference accountRef = input.getExistingAccountRef();
-        Amount initialBalance = db.getAccount(accountRef).getInitialBalance();
-        Amount totalBalance = db.getAccountBalance(accountRef);
+        // Fetched in parallel, but before the transfers are streamed, which hold a connection of their own
+        CompletableFuture<Account> account = async.getAccount(accountRef);
+        CompletableFuture<Amount> balance = async.getAccountBalance(accountRef);
+        Account fetchedAccount = account.join();
+        Amount totalBalance = balance.join();
 
         System.out.println();
+        if (fetchedAccount == null || totalBalance == null) {
+            System.out.println("Could not fetch account " + accountRef);
+            return;
+        }
+
         System.out.println("TRANSFERS FOR ACCOUNT " + accountRef);
         printSeparator();
         System.out.println("DATE     TIME      AMOUNT              SENDER                           RECEIVER                           REFERENCE");
         printSeparator();
 
-        for (Transfer t : db.getTransfers(accountRef)) {
-            System.out.printf(
-                    "%tD %tR     %c %9.2f %s     %-30s   %-30s     %-100s\n",
-                    t.getExecutionDate(),
-                    t.getExecutionDate(),
-                    t.getSignFor(accountRef),
-                    t.getAmount().getAmount(),
-                    t.getAmount().getCurrency(),
-                    t.getSenderName() + " (" + t.getSender() + ")",
-                    t.getReceiverName() + " (" + t.getReceiver() + ")",
-                    t.getReference()
-            );
-        }
+        // Transfers are printed page by page as they are streamed from the database
+        Formatter out = new Formatter(System.out);
+        backend.forEachTransfer(accountRef, null, null, t -> printTransfer(out, t, accountRef));
+        out.flush();
+
+        Amount initialBalance = fetchedAccount.getInitialBalance();
 
         printSeparator();
         System.out.printf("INITIAL BALANCE:   %s %9.2f %s\n",
@@ -186,17 +404,38 @@ public class Banker {
                 totalBalance.getCurrency());
     }
 
+    /**
+     * Print one line of a bank statement, the transfer's amount is signed as seen from the account
+     */
+    static void printTransfer(Formatter out, Transfer t, Account.Reference ref) {
+        out.format(
+                "%tD %tR     %c %9.2f %s     %-30s   %-30s     %-100s\n",
+                t.getExecutionDate(),
+                t.getExecutionDate(),
+                t.getSignFor(ref),
+                t.getAmount().getAmount(),
+                t.getAmount().getCurrency(),
+                t.getSenderName() + " (" + t.getSender() + ")",
+                t.getReceiverName() + " (" + t.getReceiver() + ")",
+                t.getReference()
+        );
+    }
+
     private void makeTransfer() {
         Transfer transfer = input.getNewTransfer();
 
-        Amount senderAccountBalance = db.getAccountBalance(transfer.getSender());
-        Amount senderAccountBalanceInTransferCurrency =
-                db.convertCurrency(senderAccountBalance, transfer.getAmount().getCurrency());
+        // Funds are checked and the transfer is made atomically
+        TransferResult result = async.makeTransfer(transfer).join();
 
         System.out.println();
 
-        // Only allow transfer if sender's account balance is sufficient
-        if (senderAccountBalanceInTransferCurrency.getAmount() < transfer.getAmount().getAmount()) {
+        if (result == TransferResult.INSUFFICIENT_FUNDS) {
+            CompletableFuture<Amount> balance = async.getAccountBalance(transfer.getSender());
+            Amount senderAccountBalanceInTransferCurrency = balance
+                    .thenCompose(b -> async.convertCurrency(b, transfer.getAmount().getCurrency()))
+                    .join();
+            Amount senderAccountBalance = balance.join();
+
             System.out.println("Sender account does not have sufficient funds.");
             System.out.println("Sender account balance: " + senderAccountBalance);
             System.out.println("Transfer amount: " + transfer.getAmount());
@@ -204,16 +443,19 @@ public class Banker {
             return;
         }
 
-        boolean success = db.makeTransfer(transfer);
-        if (success) {
+        if (result == TransferResult.SUCCESS) {
+            // Both customers are fetched in parallel
+            CompletableFuture<Customer> sender = async.getCustomer(transfer.getSender().getCustomerId());
+            CompletableFuture<Customer> receiver = async.getCustomer(transfer.getReceiver().getCustomerId());
+
             System.out.println("Successfully made wire transfer");
             System.out.println();
             System.out.println("TRANSFER DETAILS");
             System.out.printf("Date: %tD %tR\n",
                     transfer.getExecutionDate(), transfer.getExecutionDate());
-            System.out.println("Sender: " + db.getCustomer(transfer.getSender().getCustomerId()).getName()
+            System.out.println("Sender: " + sender.join().getName()
                     + " (Account " + transfer.getSender() + ")");
-            System.out.println("Receiver: " + db.getCustomer(transfer.getReceiver().getCustomerId()).getName()
+            System.out.println("Receiver: " + receiver.join().getName()
                     + " (Account " + transfer.getReceiver() + ")");
             System.out.println("Amount: " + transfer.getAmount());
             System.out.println("Reference: " + transfer.getReference());
@@ -0,0 +1,56 @@
+package de.domistiller.banker;
+
+import java.util.BitSet;
+
+/**
+ * Outcome of a bulk operation, tracked per row in the order the rows were submitted
+ * Only failed rows are stored, so large batches with few failures stay small
+ */
+public class BatchResult {
+
+    private int total;
+    private BitSet failed = new BitSet();
+
+    void succeeded() {
+        total++;
+    }
+
+    void failed() {
+        failed.set(total);
+        total++;
+    }
+
+    /**
+     * @param row Zero-based position of the row in the submitted batch
+     */
+    public boolean isSuccessful(int row) {
+        if (row < 0 || row >= total) {
+            throw new IndexOutOfBoundsException("row " + row + " is not part of the batch");
+        }
+        return !failed.get(row);
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getSucceeded() {
+        return total - failed.cardinality();
+    }
+
+    public int getFailed() {
+        return failed.cardinality();
+    }
+
+    /**
+     * Zero-based positions of all failed rows in ascending order
+     */
+    public int[] getFailedRows() {
+        return failed.stream().toArray();
+    }
+
+    @Override
+    public String toString() {
+        return getSucceeded() + " of " + total + " succeeded";
+    }
+}
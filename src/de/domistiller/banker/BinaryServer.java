@@ -0,0 +1,488 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
+import de.domistiller.banker.model.Transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binary transfer submission for high-rate clients, over non-blocking sockets served by one selector thread
+ * All numbers are big-endian, every frame starts with the int length of the rest of the frame
+ *
+ * Server to client, once after connecting:
+ *   HELLO    byte 0x10, short count, count times (short currency id, 3 bytes ASCII currency code)
+ * Client to server, any number without waiting for acks:
+ *   TRANSFER byte 0x01, long request id, long sender, long receiver, long amount in cents,
+ *            short currency id, short reference length, UTF-8 reference (at most 100 characters)
+ *   Accounts are packed into longs like Account.Reference.key, customer id in the upper half
+ * Server to client, for every batch of transfers read at once when all of them are done:
+ *   ACK      byte 0x11, short count, count times (long request id, byte status)
+ *   Status 0 success, 1 insufficient funds, 2 failed, 3 invalid request
+ *
+ * Transfers are checked and made like Backend.makeCheckedTransfer. Frames are parsed straight from direct buffers
+ * into primitives of a batch, which every connection reuses once it is acknowledged
+ * Objects are only created when a valid transfer is handed to the engine
+ */
+class BinaryServer implements Closeable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    final static byte TRANSFER = 0x01;
+    final static byte HELLO = 0x10;
+    final static byte ACK = 0x11;
+
+    final static byte STATUS_SUCCESS = 0;
+    final static byte STATUS_INSUFFICIENT_FUNDS = 1;
+    final static byte STATUS_FAILED = 2;
+    final static byte STATUS_INVALID = 3;
+    // Parsed and valid so far, the transfer is made when the batch is submitted
+    private final static byte STATUS_PENDING = -1;
+
+    // Type, request id, sender, receiver, amount, currency, reference length
+    private final static int TRANSFER_SIZE = 1 + 8 + 8 + 8 + 8 + 2 + 2;
+    private final static int MAX_REFERENCE_BYTES = 400;
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static int ACK_ENTRY_SIZE = 9;
+    private final static int INITIAL_BATCH_SIZE = 16;
+
+    private final AsyncDatabase async;
+    private final List<String> currencies;
+    private final BitSet validCurrencies = new BitSet();
+    private final int maxInFlight;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+    // Connections with new acks, handled by the selector thread
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * Start listening on server.host and binary.port
+     * @param async Makes the transfers, without occupying the selector thread
+     */
+    BinaryServer(Backend backend, AsyncDatabase async, Properties settings) throws IOException {
+        this.async = async;
+        currencies = backend.getCurrencies();
+        for (String code : currencies) {
+            validCurrencies.set(Currencies.id(code));
+        }
+        maxInFlight = Integer.parseInt(settings.getProperty("binary.maxinflight", "4096"));
+
+        InetSocketAddress address = new InetSocketAddress(
+                settings.getProperty("server.host", "127.0.0.1"),
+                Integer.parseInt(settings.getProperty("binary.port", "0")));
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, Integer.parseInt(settings.getProperty("server.backlog", "128")));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(this::run, "banker-binary-selector");
+        thread.start();
+        log.info("binary server listening on " + serverChannel.getLocalAddress());
+    }
+
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    try {
+                        connection.flush();
+                    } catch (IOException | RuntimeException e) {
+                        connection.close(e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException | RuntimeException e) {
+                            log.log(Level.WARNING, "error accepting binary connection", e);
+                        }
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // Only this connection is dropped, the others keep being served
+                        connection.close(e);
+                    }
+                }
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "error in binary server", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connection.hello();
+        connection.flush();
+    }
+
+    /**
+     * Transfers read from a connection at once, acknowledged together
+     * The arrays grow to the largest batch read and are kept when the batch is reused
+     */
+    private static final class Batch {
+        private final Connection connection;
+        private long[] requestIds = new long[INITIAL_BATCH_SIZE];
+        private byte[] statuses = new byte[INITIAL_BATCH_SIZE];
+        private long[] senders = new long[INITIAL_BATCH_SIZE];
+        private long[] receivers = new long[INITIAL_BATCH_SIZE];
+        private long[] units = new long[INITIAL_BATCH_SIZE];
+        private int[] currencies = new int[INITIAL_BATCH_SIZE];
+        // UTF-8 references of all transfers, decoded when the batch is submitted
+        private byte[] references = new byte[INITIAL_BATCH_SIZE * 16];
+        private int[] referenceOffsets = new int[INITIAL_BATCH_SIZE];
+        private int[] referenceLengths = new int[INITIAL_BATCH_SIZE];
+        private Completion[] completions = new Completion[0];
+        private int size;
+        private int referenceBytes;
+        // Entries already written to an ack frame
+        private int acked;
+        // Transfers being made, plus one until all of them are submitted
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Batch(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return Index of a new entry
+         */
+        private int add() {
+            if (size == requestIds.length) {
+                int capacity = size * 2;
+                requestIds = Arrays.copyOf(requestIds, capacity);
+                statuses = Arrays.copyOf(statuses, capacity);
+                senders = Arrays.copyOf(senders, capacity);
+                receivers = Arrays.copyOf(receivers, capacity);
+                units = Arrays.copyOf(units, capacity);
+                currencies = Arrays.copyOf(currencies, capacity);
+                referenceOffsets = Arrays.copyOf(referenceOffsets, capacity);
+                referenceLengths = Arrays.copyOf(referenceLengths, capacity);
+            }
+            return size++;
+        }
+
+        private Completion completion(int index) {
+            if (index >= completions.length) {
+                int old = completions.length;
+                completions = Arrays.copyOf(completions, requestIds.length);
+                for (int i = old; i < completions.length; i++) {
+                    completions[i] = new Completion(this, i);
+                }
+            }
+            return completions[index];
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() == 0) {
+                connection.acknowledge(this);
+            }
+        }
+
+        private void clear() {
+            size = 0;
+            referenceBytes = 0;
+            acked = 0;
+        }
+    }
+
+    /**
+     * Records the result of one transfer of a batch, created once per entry and reused with the batch
+     */
+    private static final class Completion implements BiConsumer<TransferResult, Throwable> {
+        private final Batch batch;
+        private final int index;
+
+        private Completion(Batch batch, int index) {
+            this.batch = batch;
+            this.index = index;
+        }
+
+        @Override
+        public void accept(TransferResult result, Throwable e) {
+            batch.statuses[index] = e != null ? STATUS_FAILED : status(result);
+            batch.done();
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private final Queue<Batch> acks = new ConcurrentLinkedQueue<>();
+        // Acknowledged batches for reuse, only touched by the selector thread
+        private final Deque<Batch> free = new ArrayDeque<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private boolean closed;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void hello() {
+            out.putInt(1 + 2 + currencies.size() * 5);
+            out.put(HELLO);
+            out.putShort((short) currencies.size());
+            for (String code : currencies) {
+                out.putShort((short) Currencies.id(code));
+                out.put(code.getBytes(StandardCharsets.US_ASCII), 0, 3);
+            }
+        }
+
+        /**
+         * Parse all complete frames, the last one may be incomplete and stays in the buffer
+         */
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+
+            in.flip();
+            Batch batch = free.isEmpty() ? new Batch(this) : free.pop();
+            while (in.remaining() >= 4) {
+                int start = in.position();
+                int length = in.getInt(start);
+                if (length < TRANSFER_SIZE || length > TRANSFER_SIZE + MAX_REFERENCE_BYTES) {
+                    throw new IOException("invalid frame of length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                if (in.get(start + 4) != TRANSFER) {
+                    throw new IOException("invalid frame type " + in.get(start + 4));
+                }
+                parse(start + 4, length, batch);
+                in.position(start + 4 + length);
+            }
+            in.compact();
+
+            if (batch.size > 0) {
+                submit(batch);
+            } else {
+                free.push(batch);
+            }
+        }
+
+        /**
+         * Read one transfer frame with absolute gets, invalid transfers are acknowledged without being made
+         */
+        private void parse(int offset, int length, Batch batch) {
+            int i = batch.add();
+            batch.requestIds[i] = in.getLong(offset + 1);
+            long cents = in.getLong(offset + 25);
+            // Amounts too large to convert are invalid anyway
+            long units = cents <= Long.MAX_VALUE / Amount.CENT_UNITS ? cents * Amount.CENT_UNITS : 0;
+            int currency = in.getShort(offset + 33);
+            int referenceLength = in.getShort(offset + 35);
+
+            if (!Amount.isValidTransferUnits(units) || currency < 0 || !validCurrencies.get(currency)
+                    || referenceLength < 0 || TRANSFER_SIZE + referenceLength != length) {
+                batch.statuses[i] = STATUS_INVALID;
+                return;
+            }
+
+            batch.statuses[i] = STATUS_PENDING;
+            batch.senders[i] = in.getLong(offset + 9);
+            batch.receivers[i] = in.getLong(offset + 17);
+            batch.units[i] = units;
+            batch.currencies[i] = currency;
+            if (batch.referenceBytes + referenceLength > batch.references.length) {
+                batch.references = Arrays.copyOf(batch.references,
+                        Math.max(batch.references.length * 2, batch.referenceBytes + referenceLength));
+            }
+            for (int b = 0; b < referenceLength; b++) {
+                batch.references[batch.referenceBytes + b] = in.get(offset + TRANSFER_SIZE + b);
+            }
+            batch.referenceOffsets[i] = batch.referenceBytes;
+            batch.referenceLengths[i] = referenceLength;
+            batch.referenceBytes += referenceLength;
+        }
+
+        private void submit(Batch batch) {
+            inFlight.addAndGet(batch.size);
+            if (inFlight.get() >= maxInFlight) {
+                // Stop reading until enough acks are sent, so a fast client cannot queue without bound
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+
+            // The engine takes a Transfer, so its references, amount and text are created here
+            batch.pending.set(1);
+            for (int i = 0; i < batch.size; i++) {
+                if (batch.statuses[i] != STATUS_PENDING) {
+                    continue;
+                }
+                String text = new String(batch.references, batch.referenceOffsets[i], batch.referenceLengths[i],
+                        StandardCharsets.UTF_8);
+                if (text.length() > 100) {
+                    batch.statuses[i] = STATUS_INVALID;
+                    continue;
+                }
+
+                Transfer t = new Transfer(Account.Reference.fromKey(batch.senders[i]),
+                        Account.Reference.fromKey(batch.receivers[i]),
+                        Amount.ofUnits(batch.units[i], batch.currencies[i]), text);
+                batch.pending.incrementAndGet();
+                async.makeTransfer(t).whenComplete(batch.completion(i));
+            }
+            batch.done();
+        }
+
+        /**
+         * Queue the batch for acks once all of its transfers are done
+         */
+        private void acknowledge(Batch batch) {
+            acks.add(batch);
+            ready.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Write pending acks, only called by the selector thread
+         */
+        private void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            Batch batch;
+            while ((batch = acks.peek()) != null && out.remaining() >= 4 + 3 + ACK_ENTRY_SIZE) {
+                int count = Math.min(batch.size - batch.acked, (out.remaining() - 4 - 3) / ACK_ENTRY_SIZE);
+                out.putInt(3 + count * ACK_ENTRY_SIZE);
+                out.put(ACK);
+                out.putShort((short) count);
+                for (int i = batch.acked; i < batch.acked + count; i++) {
+                    out.putLong(batch.requestIds[i]);
+                    out.put(batch.statuses[i]);
+                }
+                batch.acked += count;
+
+                if (batch.acked == batch.size) {
+                    acks.poll();
+                    inFlight.addAndGet(-batch.size);
+                    batch.clear();
+                    free.push(batch);
+                }
+            }
+
+            out.flip();
+            channel.write(out);
+            out.compact();
+
+            int ops = SelectionKey.OP_READ;
+            if (inFlight.get() >= maxInFlight) {
+                ops = 0;
+            }
+            if (out.position() > 0 || !acks.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void close(Exception cause) {
+            log.log(Level.INFO, "closing binary connection after error", cause);
+            close();
+        }
+
+        private void close() {
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.log(Level.INFO, "error closing binary connection", e);
+            }
+        }
+    }
+
+    private static byte status(TransferResult result) {
+        switch (result) {
+            case SUCCESS:
+                return STATUS_SUCCESS;
+            case INSUFFICIENT_FUNDS:
+                return STATUS_INSUFFICIENT_FUNDS;
+            default:
+                return STATUS_FAILED;
+        }
+    }
+
+    /**
+     * Stop the selector thread and close all connections, transfers being made still complete
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "error closing binary server", e);
+        }
+    }
+}
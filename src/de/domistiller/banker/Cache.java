@@ -0,0 +1,120 @@
+package de.domistiller.banker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Bounded read-through cache
+ * Evicts the least recently used entry when full and reloads entries that are older than the time to live
+ * Missing values (null) are not cached
+ */
+class Cache<K, V> {
+
+    private final String name;
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<K, Value<V>> entries;
+
+    // Incremented by every invalidation, so values loaded before it are not cached afterwards
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize Maximum number of entries, 0 disables caching
+     * @param ttlSeconds Time after which an entry is reloaded
+     */
+    Cache(String name, int maxSize, long ttlSeconds) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+
+        // Access order turns the map into an LRU list
+        entries = new LinkedHashMap<K, Value<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Value<V>> eldest) {
+                if (size() > Cache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the cached value or load it if it is missing or expired
+     * The loader runs without holding the cache lock
+     */
+    V get(K key, Function<K, V> loader) {
+        long loadGeneration;
+
+        synchronized (this) {
+            Value<V> entry = entries.get(key);
+            if (entry != null) {
+                if (System.nanoTime() - entry.loaded < ttlNanos) {
+                    hits++;
+                    return entry.value;
+                }
+                entries.remove(key);
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        V value = loader.apply(key);
+
+        if (value != null && maxSize > 0) {
+            synchronized (this) {
+                if (generation == loadGeneration) {
+                    entries.put(key, new Value<>(value));
+                }
+            }
+        }
+        return value;
+    }
+
+    synchronized void invalidate(K key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s cache: %d entries, %d hits, %d misses, %d evictions",
+                name, entries.size(), hits, misses, evictions);
+    }
+
+
+    private static class Value<V> {
+        private final V value;
+        private final long loaded;
+
+        private Value(V value) {
+            this.value = value;
+            this.loaded = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.domistiller.banker;
+
+import java.io.Closeable;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically writes balance checkpoints, so that point-in-time balances only need the transfers since the last one
+ */
+class CheckpointJob implements Closeable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final Database db;
+    private final long lagSeconds;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param intervalSeconds Interval between checkpoints, 0 to only write them when triggered
+     * @param lagSeconds Age of a checkpoint when it is written, leaves time for running transfers to commit
+     */
+    CheckpointJob(Database db, long intervalSeconds, long lagSeconds) {
+        this.db = db;
+        this.lagSeconds = lagSeconds;
+
+        if (intervalSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "banker-checkpointer");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::run, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Write a checkpoint for all accounts unless there already is one at least as recent
+     * @return Whether the checkpoints are up to date
+     */
+    boolean run() {
+        try {
+            // Checkpoints are keyed by datetime, which has no fractional seconds
+            LocalDateTime asOf = LocalDateTime.now().minusSeconds(lagSeconds).truncatedTo(ChronoUnit.SECONDS);
+            return db.createBalanceCheckpoints(asOf);
+        } catch (RuntimeException e) {
+            // Would otherwise cancel all further runs silently
+            log.log(Level.SEVERE, "error running balance checkpoint job", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package de.domistiller.banker;
+
+import java.io.Closeable;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of database connections
+ * Every connection is borrowed by exactly one thread at a time and caches its own prepared statements
+ */
+class ConnectionPool implements Closeable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final static long VALIDATION_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Prepares a newly opened connection before it is handed out for the first time
+     */
+    interface Initializer {
+        void initialize(PooledConnection connection) throws SQLException;
+    }
+
+    private final String url;
+    private final Initializer initializer;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long timeoutNanos;
+    private final boolean validate;
+    private final long idleTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // Most recently used connections are at the head, so idle ones collect at the tail
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    // Number of open connections, both idle and borrowed
+    private int size;
+    private boolean closed;
+
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Create a pool configured by the dbpool.* settings and open the minimum number of connections
+     */
+    ConnectionPool(String url, Properties settings, Initializer initializer) throws SQLException {
+        this.url = url;
+        this.initializer = initializer;
+
+        minSize = Integer.parseInt(settings.getProperty("dbpool.minsize", "1"));
+        maxSize = Integer.parseInt(settings.getProperty("dbpool.maxsize", "10"));
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(settings.getProperty("dbpool.timeout", "5000")));
+        validate = Boolean.parseBoolean(settings.getProperty("dbpool.validate", "true"));
+        long idleTimeoutMillis = Long.parseLong(settings.getProperty("dbpool.idletimeout", "600000"));
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("invalid connection pool size " + minSize + ".." + maxSize);
+        }
+
+        for (int i = 0; i < minSize; i++) {
+            PooledConnection c = open();
+            lock.lock();
+            try {
+                size++;
+                idle.addFirst(c);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "banker-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+
+        log.info("connection pool started with " + minSize + " to " + maxSize + " connections");
+    }
+
+    /**
+     * Maximum number of open connections, and so of statements running at the same time
+     */
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Borrow a connection, waiting up to the configured timeout if all connections are in use
+     * The connection must be closed to return it to the pool
+     */
+    PooledConnection acquire() throws SQLException {
+        long remaining = timeoutNanos;
+
+        while (true) {
+            PooledConnection c;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new SQLException("connection pool is closed");
+                    }
+                    c = idle.pollFirst();
+                    if (c != null) {
+                        break;
+                    }
+                    if (size < maxSize) {
+                        // Reserve the slot now, the connection is opened outside of the lock
+                        size++;
+                        break;
+                    }
+                    if (remaining <= 0) {
+                        throw new SQLTimeoutException("timed out waiting for a database connection");
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for a database connection", e);
+            } finally {
+                lock.unlock();
+            }
+
+            if (c == null) {
+                try {
+                    return open();
+                } catch (SQLException e) {
+                    removed();
+                    throw e;
+                }
+            }
+
+            // Connections used moments ago are trusted to save the validation round trip
+            boolean recentlyUsed = System.nanoTime() - c.getLastUsed() < VALIDATION_INTERVAL;
+            if (!validate || recentlyUsed || c.isValid()) {
+                return c;
+            }
+
+            log.info("discarding invalid database connection");
+            c.closeConnection();
+            removed();
+        }
+    }
+
+    /**
+     * Return a borrowed connection to the pool
+     */
+    void release(PooledConnection c) {
+        if (!c.reset()) {
+            c.closeConnection();
+            removed();
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (!closed) {
+                c.touch();
+                idle.addFirst(c);
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        c.closeConnection();
+    }
+
+    private PooledConnection open() throws SQLException {
+        PooledConnection c = new PooledConnection(this, DriverManager.getConnection(url));
+        try {
+            initializer.initialize(c);
+        } catch (SQLException e) {
+            c.closeConnection();
+            throw e;
+        }
+        return c;
+    }
+
+    private void removed() {
+        lock.lock();
+        try {
+            size--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictIdle() {
+        List<PooledConnection> evicted = new ArrayList<>();
+
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && size > minSize) {
+                PooledConnection c = it.next();
+                if (now - c.getLastUsed() < idleTimeoutNanos) {
+                    // All remaining connections have been used more recently
+                    break;
+                }
+                it.remove();
+                size--;
+                evicted.add(c);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (PooledConnection c : evicted) {
+            c.closeConnection();
+        }
+        if (!evicted.isEmpty()) {
+            log.info("evicted " + evicted.size() + " idle database connections");
+        }
+    }
+
+    @Override
+    public void close() {
+        List<PooledConnection> remaining;
+        int borrowed;
+
+        lock.lock();
+        try {
+            closed = true;
+            remaining = new ArrayList<>(idle);
+            borrowed = size - idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        evictor.shutdownNow();
+        for (PooledConnection c : remaining) {
+            c.closeConnection();
+        }
+
+        if (borrowed > 0) {
+            log.log(Level.WARNING, borrowed + " database connections were still borrowed when the pool was closed");
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Customer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the customers and accounts listed in CSV files, e.g. when migrating a portfolio
+ *
+ * Every line is a customer or an account, accounts belong to the customer above them:
+ *   customer,name,address,email,phone
+ *   account,account number,currency,initial balance
+ * Fields may be quoted like "Main Street 1, Springfield", address, email and phone may be empty
+ * Initial balances may be zero, otherwise they follow the same rules as in the console
+ * Blank lines and lines starting with # are skipped
+ *
+ * Lines are read and inserted in batches of batchsize, so memory use does not depend on the size of a file
+ * The result of every line is written to a file next to it, named like the file with .result appended:
+ *   line number,CREATED|FAILED|INVALID[,customer id or reason]
+ */
+class CustomerImport {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    // Column sizes of the customers table
+    private final static int MAX_NAME_LENGTH = 50;
+    private final static int MAX_ADDRESS_LENGTH = 200;
+    private final static int MAX_EMAIL_LENGTH = 50;
+    private final static int MAX_PHONE_LENGTH = 20;
+
+    private final Database db;
+    private final int batchSize;
+    private final Set<String> currencies;
+
+    // Counts of the current file
+    private long customersCreated;
+    private long accountsCreated;
+    private long failed;
+    private long invalid;
+
+    /**
+     * One line of the current batch
+     */
+    private static final class Row {
+        private final int line;
+        // Customer of the line, or the customer an account belongs to
+        private final Customer customer;
+        private Account.Reference account;
+        private Amount initialBalance;
+        private String error;
+
+        private Row(int line, Customer customer) {
+            this.line = line;
+            this.customer = customer;
+        }
+    }
+
+    CustomerImport(Database db, Properties settings) {
+        this.db = db;
+        batchSize = Integer.parseInt(settings.getProperty("batchsize", "1000"));
+        currencies = new HashSet<>(db.getCurrencies());
+    }
+
+    /**
+     * Import the files one after another
+     * @return Whether every file could be read and its results written, independent of the rows' results
+     */
+    boolean run(List<String> files) {
+        boolean success = true;
+        for (String file : files) {
+            success &= process(Paths.get(file));
+        }
+        return success;
+    }
+
+    private boolean process(Path file) {
+        Path resultFile = Paths.get(file.toString() + ".result");
+        long start = System.nanoTime();
+        customersCreated = 0;
+        accountsCreated = 0;
+        failed = 0;
+        invalid = 0;
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             Writer results = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+            List<Row> rows = new ArrayList<>(batchSize);
+            // Customer of the last customer line, accounts are added to it
+            Row owner = null;
+            int line = 0;
+
+            for (String text; (text = in.readLine()) != null; ) {
+                line++;
+                if (text.isEmpty() || text.startsWith("#")) {
+                    continue;
+                }
+
+                Row row;
+                try {
+                    List<String> fields = split(text);
+                    if (fields.get(0).equals("customer")) {
+                        row = new Row(line, parseCustomer(fields));
+                        owner = row;
+                    } else if (fields.get(0).equals("account")) {
+                        if (owner == null) {
+                            throw new IllegalArgumentException("account before the first customer");
+                        }
+                        row = new Row(line, owner.customer);
+                        parseAccount(fields, row);
+                        if (owner.error != null) {
+                            row.error = "customer on line " + owner.line + " is invalid";
+                        }
+                    } else {
+                        throw new IllegalArgumentException("line must start with customer or account");
+                    }
+                } catch (IllegalArgumentException e) {
+                    row = new Row(line, null);
+                    row.error = e.getMessage();
+                }
+                rows.add(row);
+
+                if (rows.size() >= batchSize) {
+                    flush(rows, results);
+                }
+            }
+            flush(rows, results);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "error importing " + file, e);
+            System.out.println("Could not import " + file + ": " + e.getMessage());
+            return false;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d customers and %d accounts created, %d failed, %d invalid, %.1f s, %.0f rows/s\n",
+                file, customersCreated, accountsCreated, failed, invalid,
+                seconds, (customersCreated + accountsCreated) / Math.max(seconds, 1e-9));
+        return true;
+    }
+
+    private Customer parseCustomer(List<String> fields) {
+        if (fields.size() != 5) {
+            throw new IllegalArgumentException("customer must have name, address, email and phone");
+        }
+        String name = fields.get(1);
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("name must have 1 to " + MAX_NAME_LENGTH + " characters");
+        }
+
+        Customer customer = new Customer(name);
+        customer.setAddress(optional(fields.get(2), MAX_ADDRESS_LENGTH, "address"));
+        customer.setEmail(optional(fields.get(3), MAX_EMAIL_LENGTH, "email"));
+        customer.setPhone(optional(fields.get(4), MAX_PHONE_LENGTH, "phone"));
+        return customer;
+    }
+
+    private void parseAccount(List<String> fields, Row row) {
+        if (fields.size() != 4) {
+            throw new IllegalArgumentException("account must have account number, currency and initial balance");
+        }
+
+        int accountNumber;
+        BigDecimal balance;
+        try {
+            accountNumber = Integer.parseInt(fields.get(1).trim());
+            balance = new BigDecimal(fields.get(3).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid account number or initial balance");
+        }
+        String currency = fields.get(2).trim();
+
+        if (accountNumber <= 0) {
+            throw new IllegalArgumentException("account number must be positive");
+        }
+        if (!currencies.contains(currency)) {
+            throw new IllegalArgumentException("unknown currency " + currency);
+        }
+        if (balance.signum() != 0 && !Input.isValidAmount(balance)) {
+            throw new IllegalArgumentException("invalid initial balance " + balance);
+        }
+
+        // The customer id is only known once the customer is created
+        row.account = new Account.Reference(0, accountNumber);
+        row.initialBalance = new Amount(balance, currency);
+    }
+
+    /**
+     * Create the customers of the batch, then the accounts with their customers' generated ids
+     */
+    private void flush(List<Row> rows, Writer results) throws IOException {
+        List<Customer> newCustomers = new ArrayList<>();
+        for (Row row : rows) {
+            if (row.error == null && row.account == null) {
+                newCustomers.add(row.customer);
+            }
+        }
+        BatchResult customerResult = db.createCustomers(newCustomers);
+
+        // Customers of earlier batches already have their ids
+        List<Account> newAccounts = new ArrayList<>();
+        for (Row row : rows) {
+            if (row.error == null && row.account != null && row.customer.getId() > 0) {
+                newAccounts.add(new Account(row.customer.getId(), row.account.getAccountNumber(), row.initialBalance));
+            }
+        }
+        BatchResult accountResult = db.createAccounts(newAccounts);
+
+        int customerIndex = 0;
+        int accountIndex = 0;
+        for (Row row : rows) {
+            results.write(Integer.toString(row.line));
+            results.write(',');
+
+            if (row.error != null) {
+                invalid++;
+                results.write("INVALID,");
+                results.write(row.error);
+            } else if (row.account == null) {
+                if (customerResult.isSuccessful(customerIndex++)) {
+                    customersCreated++;
+                    results.write("CREATED,");
+                    results.write(Integer.toString(row.customer.getId()));
+                } else {
+                    failed++;
+                    results.write("FAILED");
+                }
+            } else if (row.customer.getId() > 0 && accountResult.isSuccessful(accountIndex++)) {
+                accountsCreated++;
+                results.write("CREATED,");
+                results.write(Integer.toString(row.customer.getId()));
+            } else {
+                failed++;
+                results.write("FAILED");
+            }
+            results.write('\n');
+        }
+        rows.clear();
+    }
+
+    private static String optional(String value, int maxLength, String name) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        if (value.length() > maxLength) {
+            throw new IllegalArgumentException(name + " longer than " + maxLength + " characters");
+        }
+        return value;
+    }
+
+    /**
+     * Split a CSV line, quotes inside a quoted field are doubled
+     */
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>(5);
+        StringBuilder field = new StringBuilder();
+        int i = 0;
+        while (true) {
+            field.setLength(0);
+            if (i < line.length() && line.charAt(i) == '"') {
+                for (i++; ; i++) {
+                    if (i == line.length()) {
+                        throw new IllegalArgumentException("unterminated quoted field");
+                    }
+                    char c = line.charAt(i);
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        i++;
+                        break;
+                    }
+                }
+                if (i < line.length() && line.charAt(i) != ',') {
+                    throw new IllegalArgumentException("unexpected text after quoted field");
+                }
+            } else {
+                while (i < line.length() && line.charAt(i) != ',') {
+                    field.append(line.charAt(i++));
+                }
+            }
+            fields.add(field.toString());
+
+            if (i >= line.length()) {
+                return fields;
+            }
+            // Skip the comma
+            i++;
+        }
+    }
+}
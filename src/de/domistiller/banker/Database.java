@@ -2,13 +2,27 @@ package de.domistiller.banker;
 
 import de.domistiller.banker.model.Account;
 import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
 import de.domistiller.banker.model.Customer;
 import de.domistiller.banker.model.Transfer;
 
 import java.io.Closeable;
+import java.math.BigDecimal;
 import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,33 +30,300 @@ import java.util.logging.Logger;
  * Handles all database interaction
  * Contains read and write queries
  */
-public class Database implements Closeable {
+public class Database implements Backend {
 
     private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
-    private Connection conn;
+    // See sql/queries.sql for SQL-only code
+    // Package-private so that PlanCheck can explain them
+    final static String GET_CUSTOMER =
+            "SELECT id, name, address, email, phone, COUNT(account_no)\n" +
+                "FROM customers\n" +
+                "LEFT JOIN accounts ON customers.id = accounts.customer_id\n" +
+                "WHERE id = ?\n" +
+                "GROUP BY id, name, address, email, phone";
+    final static String GET_CUSTOMERS =
+            "SELECT id, name, address, email, phone, COUNT(account_no)\n" +
+                "FROM customers\n" +
+                "LEFT JOIN accounts ON customers.id = accounts.customer_id\n" +
+                "GROUP BY id, name, address, email, phone";
+    final static String GET_CUSTOMER_PAGE =
+            "SELECT id, name, address, email, phone, COUNT(account_no)\n" +
+                "FROM customers\n" +
+                "LEFT JOIN accounts ON customers.id = accounts.customer_id\n" +
+                "WHERE id > ?\n" +
+                "GROUP BY id, name, address, email, phone\n" +
+                "ORDER BY id\n" +
+                "LIMIT ?";
+    final static String CREATE_CUSTOMER =
+            "INSERT INTO customers (name, address, email, phone) VALUES (?, ?, ?, ?)";
+    // Id generated by the last insert on the same connection
+    final static String GET_LAST_INSERT_ID =
+            "SELECT LAST_INSERT_ID()";
 
-    private PreparedStatement getCustomer;
-    private PreparedStatement getCustomers;
-    private PreparedStatement createCustomer;
+    final static String GET_ACCOUNT =
+            "SELECT *\n" +
+                "FROM accounts\n" +
+                "WHERE customer_id = ?\n" +
+                "AND account_no = ?";
+    // Continues after the primary key of the last account of the previous page
+    final static String GET_ACCOUNT_PAGE =
+            "SELECT customer_id, account_no, currency, initial_balance, current_balance\n" +
+                "FROM accounts\n" +
+                "WHERE customer_id > ?\n" +
+                "OR (customer_id = ? AND account_no > ?)\n" +
+                "ORDER BY customer_id, account_no\n" +
+                "LIMIT ?";
+    final static String GET_ACCOUNTS_WITH_BALANCES =
+            "SELECT customer_id, account_no, currency, initial_balance, current_balance\n" +
+                "FROM accounts\n" +
+                "WHERE customer_id = ?\n" +
+                "ORDER BY account_no";
+    // The placeholder list is filled in for the number of customers
+    final static String GET_ACCOUNTS_WITH_BALANCES_FOR_CUSTOMERS =
+            "SELECT customer_id, account_no, currency, initial_balance, current_balance\n" +
+                "FROM accounts\n" +
+                "WHERE customer_id IN (%s)\n" +
+                "ORDER BY customer_id, account_no";
+    final static String GET_ACCOUNT_BALANCE =
+            "SELECT current_balance, currency\n" +
+                "FROM accounts\n" +
+                "WHERE customer_id = ?\n" +
+                "AND account_no = ?";
+    final static String UPDATE_ACCOUNT_BALANCE =
+            "UPDATE accounts\n" +
+                "SET current_balance = current_balance + ? * (SELECT rate\n" +
+                "                                             FROM exchangerates\n" +
+                "                                             WHERE from_currency = ?\n" +
+                "                                             AND to_currency = accounts.currency)\n" +
+                "WHERE customer_id = ?\n" +
+                "AND account_no = ?";
+    final static String VERIFY_ACCOUNT_BALANCES =
+            "SELECT customer_id, account_no, currency, current_balance, computed_balance\n" +
+                "FROM (SELECT customer_id, account_no, currency, current_balance, initial_balance\n" +
+                "   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                "      FROM transfers t\n" +
+                "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                "      WHERE t.receiver_id = a.customer_id\n" +
+                "      AND t.receiver_account = a.account_no)\n" +
+                "   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                "      FROM transfers t\n" +
+                "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                "      WHERE t.sender_id = a.customer_id\n" +
+                "      AND t.sender_account = a.account_no) as computed_balance\n" +
+                "      FROM accounts a) as x\n" +
+                "WHERE current_balance <> computed_balance";
+    final static String REBUILD_ACCOUNT_BALANCES =
+            "UPDATE accounts a\n" +
+                "SET current_balance = initial_balance\n" +
+                "   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                "      FROM transfers t\n" +
+                "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                "      WHERE t.receiver_id = a.customer_id\n" +
+                "      AND t.receiver_account = a.account_no)\n" +
+                "   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                "      FROM transfers t\n" +
+                "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                "      WHERE t.sender_id = a.customer_id\n" +
+                "      AND t.sender_account = a.account_no)";
+    // Latest checkpoint of an account up to a point in time, a seek on the primary key
+    final static String GET_BALANCE_CHECKPOINT =
+            "SELECT balance, last_transfer_id\n" +
+                "FROM balance_checkpoints\n" +
+                "WHERE customer_id = ?\n" +
+                "AND account_no = ?\n" +
+                "AND as_of <= ?\n" +
+                "ORDER BY as_of DESC\n" +
+                "LIMIT 1";
+    // Checkpoint balance (or initial balance) corrected to a point in time:
+    // plus transfers after the checkpoint's last transfer executed up to that time,
+    // minus transfers up to the checkpoint's last transfer executed after that time
+    // All bounds are parameters, so MySQL can read each sum from an index range
+    final static String GET_ACCOUNT_BALANCE_AS_OF =
+            "SELECT IFNULL(?, a.initial_balance)\n" +
+                "   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                "      FROM transfers t\n" +
+                "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                "      WHERE t.receiver_id = a.customer_id\n" +
+                "      AND t.receiver_account = a.account_no\n" +
+                "      AND t.id > ?\n" +
+                "      AND t.execution_date <= ?)\n" +
+                "   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                "      FROM transfers t\n" +
+                "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                "      WHERE t.receiver_id = a.customer_id\n" +
+                "      AND t.receiver_account = a.account_no\n" +
+                "      AND t.execution_date > ?\n" +
+                "      AND t.id <= ?)\n" +
+                "   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                "      FROM transfers t\n" +
+                "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                "      WHERE t.sender_id = a.customer_id\n" +
+                "      AND t.sender_account = a.account_no\n" +
+                "      AND t.id > ?\n" +
+                "      AND t.execution_date <= ?)\n" +
+                "   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                "      FROM transfers t\n" +
+                "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                "      WHERE t.sender_id = a.customer_id\n" +
+                "      AND t.sender_account = a.account_no\n" +
+                "      AND t.execution_date > ?\n" +
+                "      AND t.id <= ?) as balance,\n" +
+                "   a.currency\n" +
+                "FROM accounts a\n" +
+                "WHERE a.customer_id = ?\n" +
+                "AND a.account_no = ?";
+    final static String GET_LATEST_CHECKPOINT =
+            "SELECT as_of, last_transfer_id\n" +
+                "FROM balance_checkpoints\n" +
+                "ORDER BY as_of DESC\n" +
+                "LIMIT 1";
+    // Reads backwards from the newest transfer, so only the transfers after the time are visited
+    final static String GET_LAST_TRANSFER_BEFORE =
+            "SELECT id\n" +
+                "FROM transfers\n" +
+                "WHERE id > ?\n" +
+                "AND execution_date <= ?\n" +
+                "ORDER BY id DESC\n" +
+                "LIMIT 1";
+    // Previous checkpoint of every account plus the transfers in the range of ids since, accounts without one
+    // start from their initial balance
+    // The range is read from the primary key once, so a round only costs the transfers since the previous one
+    final static String CREATE_BALANCE_CHECKPOINTS =
+            "INSERT INTO balance_checkpoints (customer_id, account_no, as_of, balance, last_transfer_id)\n" +
+                "SELECT a.customer_id, a.account_no, ?, IFNULL(c.balance, a.initial_balance) + IFNULL(d.delta, 0), ?\n" +
+                "FROM accounts a\n" +
+                "LEFT JOIN balance_checkpoints c ON c.customer_id = a.customer_id\n" +
+                "   AND c.account_no = a.account_no\n" +
+                "   AND c.as_of = ?\n" +
+                "LEFT JOIN (\n" +
+                "   SELECT m.customer_id, m.account_no, SUM(m.amount * r.rate) AS delta\n" +
+                "   FROM (\n" +
+                "      SELECT receiver_id AS customer_id, receiver_account AS account_no, amount, currency\n" +
+                "      FROM transfers\n" +
+                "      WHERE id > ? AND id <= ?\n" +
+                "      UNION ALL\n" +
+                "      SELECT sender_id, sender_account, -amount, currency\n" +
+                "      FROM transfers\n" +
+                "      WHERE id > ? AND id <= ?\n" +
+                "   ) m\n" +
+                "   JOIN accounts ma ON ma.customer_id = m.customer_id AND ma.account_no = m.account_no\n" +
+                "   JOIN exchangerates r ON r.from_currency = m.currency AND r.to_currency = ma.currency\n" +
+                "   GROUP BY m.customer_id, m.account_no\n" +
+                ") d ON d.customer_id = a.customer_id AND d.account_no = a.account_no";
+    // Running the end of day again for the same date replaces its results
+    final static String SAVE_DAILY_BALANCE =
+            "INSERT INTO daily_balances (customer_id, account_no, business_date, balance, interest, last_transfer_id)\n" +
+                "VALUES (?, ?, ?, ?, ?, ?)\n" +
+                "ON DUPLICATE KEY UPDATE balance = VALUES(balance), interest = VALUES(interest),\n" +
+                "   last_transfer_id = VALUES(last_transfer_id)";
+    final static String CREATE_ACCOUNT =
+            "INSERT INTO accounts (customer_id, account_no, currency, initial_balance, current_balance) \n" +
+                "VALUES (?, ?, ?, ?, ?)";
 
-    private PreparedStatement getAccount;
-    private PreparedStatement getAccounts;
-    private PreparedStatement getAccountBalance;
-    private PreparedStatement createAccount;
+    final static String GET_TRANSFERS =
+            "SELECT transfers.id,\n" +
+                "       sender_id, sender_account, s.name as sender_name,\n" +
+                "       receiver_id, receiver_account, r.name as receiver_name,\n" +
+                "       amount, currency, execution_date, reference\n" +
+                "FROM transfers\n" +
+                "JOIN customers s ON transfers.sender_id = s.id\n" +
+                "JOIN customers r ON transfers.receiver_id = r.id\n" +
+                "WHERE (sender_id = ? AND sender_account = ?)\n" +
+                "OR (receiver_id = ? AND receiver_account = ?)\n" +
+                "ORDER BY execution_date ASC;";
+    final static String GET_TRANSFER_PAGE =
+            "SELECT t.id,\n" +
+                "       t.sender_id, t.sender_account, s.name as sender_name,\n" +
+                "       t.receiver_id, t.receiver_account, r.name as receiver_name,\n" +
+                "       t.amount, t.currency, t.execution_date, t.reference\n" +
+                "FROM ((SELECT * FROM transfers\n" +
+                "       WHERE sender_id = ? AND sender_account = ?\n" +
+                "       AND (execution_date > ? OR (execution_date = ? AND id > ?))\n" +
+                "       AND execution_date < ?\n" +
+                "       ORDER BY execution_date, id\n" +
+                "       LIMIT ?)\n" +
+                "      UNION ALL\n" +
+                "      (SELECT * FROM transfers\n" +
+                "       WHERE receiver_id = ? AND receiver_account = ?\n" +
+                "       AND NOT (sender_id = ? AND sender_account = ?)\n" +
+                "       AND (execution_date > ? OR (execution_date = ? AND id > ?))\n" +
+                "       AND execution_date < ?\n" +
+                "       ORDER BY execution_date, id\n" +
+                "       LIMIT ?)) as t\n" +
+                "JOIN customers s ON t.sender_id = s.id\n" +
+                "JOIN customers r ON t.receiver_id = r.id\n" +
+                "ORDER BY t.execution_date, t.id\n" +
+                "LIMIT ?";
+    // Continues after the id of the last transfer of the previous page
+    final static String GET_ALL_TRANSFERS_PAGE =
+            "SELECT id, sender_id, sender_account, receiver_id, receiver_account,\n" +
+                "   amount, currency, execution_date, reference\n" +
+                "FROM transfers\n" +
+                "WHERE id > ? AND id <= ?\n" +
+                "ORDER BY id\n" +
+                "LIMIT ?";
+    final static String GET_LAST_TRANSFER_ID =
+            "SELECT IFNULL(MAX(id), 0) FROM transfers";
+    // A NULL id is generated by the database, the Ledger assigns ids itself
+    final static String MAKE_TRANSFER =
+            "INSERT INTO transfers(id, sender_id, sender_account, receiver_id, receiver_account,\n" +
+                "                  amount, currency, execution_date, reference)\n" +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
-    private PreparedStatement getTransfers;
-    private PreparedStatement makeTransfer;
+    final static String GET_CURRENCIES =
+            "SELECT code, name FROM currencies";
+    final static String GET_EXCHANGE_RATES =
+            "SELECT from_currency, to_currency, rate FROM exchangerates";
 
-    private PreparedStatement getCurrencies;
-    private PreparedStatement convertCurrency;
+    // Range of the datetime type, used for open-ended date ranges
+    private final static Timestamp MIN_DATE = Timestamp.valueOf("1000-01-01 00:00:00");
+    private final static Timestamp MAX_DATE = Timestamp.valueOf("9999-12-31 23:59:59");
+
+    private ConnectionPool pool;
+
+    // Number of rows sent per JDBC batch and committed per transaction in bulk operations
+    private int batchSize;
+    // Number of rows fetched per query when streaming large results
+    private int pageSize;
+
+    private AccountLocks locks;
+    private ExchangeRates rates;
+    private CheckpointJob checkpoints;
+    // Only with group commit enabled
+    private TransferCommitQueue commitQueue;
+
+    private Cache<Integer, Customer> customers;
+    private Cache<Account.Reference, Account> accounts;
 
     public Database(String server, String user, String password, String database) {
+        this(settings(server, user, password, database));
+    }
+
+    /**
+     * Connect to the database configured by the db* settings
+     * The size and behaviour of the connection pool can be tuned with the dbpool.* settings
+     */
+    public Database(Properties settings) {
+        batchSize = Integer.parseInt(settings.getProperty("batchsize", "1000"));
+        pageSize = Integer.parseInt(settings.getProperty("pagesize", "500"));
+        locks = new AccountLocks(Integer.parseInt(settings.getProperty("lockstripes", "1024")));
+
+        int cacheSize = Integer.parseInt(settings.getProperty("cache.size", "10000"));
+        long cacheTtl = Long.parseLong(settings.getProperty("cache.ttl", "60"));
+        customers = new Cache<>("customer", cacheSize, cacheTtl);
+        accounts = new Cache<>("account", cacheSize, cacheTtl);
+
         try {
             log.info("trying to establish database connection");
-            conn = DriverManager.getConnection(
-                    "jdbc:mysql://" + server + "/" + database
-                            + "?user=" + user + "&password=" + password);
+            pool = new ConnectionPool(
+                    "jdbc:mysql://" + settings.getProperty("dbserver") + "/" + settings.getProperty("dbname")
+                            + "?user=" + settings.getProperty("dbuser")
+                            + "&password=" + settings.getProperty("dbpassword")
+                            // Lets the driver send batched inserts as multi-row statements
+                            + "&rewriteBatchedStatements=true",
+                    settings,
+                    this::initializeStatements);
             log.info("database connection established");
         } catch (SQLException e) {
             log.log(Level.SEVERE, "error establishing database connection", e);
@@ -50,104 +331,101 @@ public class Database implements Closeable {
         }
 
         try {
-            initializeStatements();
-        } catch (SQLException e) {
-            log.log(Level.SEVERE, "error creating SQL statements", e);
+            rates = new ExchangeRates(this::getExchangeRates,
+                    Long.parseLong(settings.getProperty("ratesrefresh", "0")));
+        } catch (IllegalStateException e) {
+            log.log(Level.SEVERE, "error loading exchange rates", e);
             System.exit(-1);
         }
+
+        checkpoints = new CheckpointJob(this,
+                Long.parseLong(settings.getProperty("checkpoint.interval", "0")),
+                Long.parseLong(settings.getProperty("checkpoint.lag", "300")));
+
+        long groupCommitWindow = Long.parseLong(settings.getProperty("groupcommit.window", "0"));
+        if (groupCommitWindow > 0) {
+            commitQueue = new TransferCommitQueue(this, groupCommitWindow,
+                    Integer.parseInt(settings.getProperty("groupcommit.maxbatch", "100")));
+        }
+    }
+
+    private static Properties settings(String server, String user, String password, String database) {
+        Properties settings = new Properties();
+        settings.setProperty("dbserver", server);
+        settings.setProperty("dbuser", user);
+        settings.setProperty("dbpassword", password);
+        settings.setProperty("dbname", database);
+        return settings;
+    }
+
+    /**
+     * Bring the schema up to date, see Migrations
+     */
+    boolean migrate() {
+        try (PooledConnection conn = pool.acquire()) {
+            Migrations.apply(conn.getConnection());
+            return true;
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error migrating schema", e);
+            return false;
+        }
     }
 
-    private void initializeStatements() throws SQLException {
-        // See sql/queries.sql for SQL-only code
-        getCustomer = conn.prepareStatement(
-                "SELECT id, name, address, email, phone, COUNT(account_no)\n" +
-                    "FROM customers\n" +
-                    "LEFT JOIN accounts ON customers.id = accounts.customer_id\n" +
-                    "WHERE id = ?\n" +
-                    "GROUP BY id, name, address, email, phone"
-        );
-        getCustomers = conn.prepareStatement(
-                "SELECT id, name, address, email, phone, COUNT(account_no)\n" +
-                    "FROM customers\n" +
-                    "LEFT JOIN accounts ON customers.id = accounts.customer_id\n" +
-                    "GROUP BY id, name, address, email, phone"
-        );
-        createCustomer = conn.prepareStatement(
-                "INSERT INTO customers (name, address, email, phone) VALUES (?, ?, ?, ?)");
-
-        getAccount = conn.prepareStatement(
-                "SELECT *\n" +
-                    "FROM accounts\n" +
-                    "WHERE customer_id = ?\n" +
-                    "AND account_no = ?");
-        getAccounts = conn.prepareStatement("SELECT * FROM accounts WHERE customer_id = ?");
-        getAccountBalance = conn.prepareStatement(
-                "SELECT initial_balance\n" +
-                    "+ (SELECT IFNULL(SUM(x.amount * x.rate), 0)\n" +
-                    "   FROM (SELECT t.amount, (SELECT rate\n" +
-                    "                           FROM exchangerates\n" +
-                    "                           WHERE from_currency = t.currency\n" +
-                    "                           AND to_currency = (SELECT currency\n" +
-                    "                                                FROM accounts\n" +
-                    "                                                WHERE customer_id = ?\n" +
-                    "                                                AND account_no = ?)\n" +
-                    "                           ) as rate\n" +
-                    "         FROM transfers t\n" +
-                    "         WHERE receiver_id = ?\n" +
-                    "         AND receiver_account = ?) as x)\n" +
-                    "- (SELECT IFNULL(SUM(x.amount * x.rate), 0)\n" +
-                    "   FROM (SELECT t.amount, (SELECT rate\n" +
-                    "                           FROM exchangerates\n" +
-                    "                           WHERE from_currency = t.currency\n" +
-                    "                           AND to_currency = (SELECT currency\n" +
-                    "                                                FROM accounts\n" +
-                    "                                                WHERE customer_id = ?\n" +
-                    "                                                AND account_no = ?)\n" +
-                    "                           ) as rate\n" +
-                    "         FROM transfers t\n" +
-                    "         WHERE sender_id = ?\n" +
-                    "         AND sender_account = ?) as x) as balance, currency\n" +
-                    "FROM accounts\n" +
-                    "WHERE customer_id = ?\n" +
-                    "AND account_no = ?"
-        );
-        createAccount = conn.prepareStatement(
-                "INSERT INTO accounts (customer_id, account_no, currency, initial_balance) \n" +
-                    "VALUES (?, ?, ?, ?)");
-
-        getTransfers = conn.prepareStatement(
-                "SELECT transfers.id,\n" +
-                    "       sender_id, sender_account, s.name as sender_name,\n" +
-                    "       receiver_id, receiver_account, r.name as receiver_name,\n" +
-                    "       amount, currency, execution_date, reference\n" +
-                    "FROM transfers\n" +
-                    "JOIN customers s ON transfers.sender_id = s.id\n" +
-                    "JOIN customers r ON transfers.receiver_id = r.id\n" +
-                    "WHERE (sender_id = ? AND sender_account = ?)\n" +
-                    "OR (receiver_id = ? AND receiver_account = ?)\n" +
-                    "ORDER BY execution_date ASC;"
-        );
-        makeTransfer = conn.prepareStatement(
-                "INSERT INTO transfers(sender_id, sender_account, receiver_id, receiver_account,\n" +
-                        "                  amount, currency, execution_date, reference)\n" +
-                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?)"
-        );
-
-        getCurrencies = conn.prepareStatement(
-                "SELECT code, name FROM currencies"
-        );
-        convertCurrency = conn.prepareStatement(
-                "SELECT ? * rate\n" +
-                    "FROM exchangerates\n" +
-                    "WHERE from_currency = ?\n" +
-                    "AND to_currency = ?"
-        );
+    /**
+     * Borrow a connection for work outside of this class, such as checking query plans
+     * Must be closed to return it to the pool
+     */
+    PooledConnection acquireConnection() throws SQLException {
+        return pool.acquire();
+    }
+
+    /**
+     * Prepare all statements on a new connection, so that errors in them show up right away
+     */
+    private void initializeStatements(PooledConnection conn) throws SQLException {
+        conn.prepare(GET_CUSTOMER);
+        conn.prepare(GET_CUSTOMERS);
+        conn.prepare(GET_CUSTOMER_PAGE);
+        conn.prepare(CREATE_CUSTOMER);
+        conn.prepare(GET_LAST_INSERT_ID);
+
+        conn.prepare(GET_ACCOUNT);
+        conn.prepare(GET_ACCOUNT_PAGE);
+        conn.prepare(GET_ACCOUNTS_WITH_BALANCES);
+        conn.prepare(GET_ACCOUNT_BALANCE);
+        conn.prepare(UPDATE_ACCOUNT_BALANCE);
+        conn.prepare(VERIFY_ACCOUNT_BALANCES);
+        conn.prepare(REBUILD_ACCOUNT_BALANCES);
+        conn.prepare(GET_BALANCE_CHECKPOINT);
+        conn.prepare(GET_ACCOUNT_BALANCE_AS_OF);
+        conn.prepare(GET_LATEST_CHECKPOINT);
+        conn.prepare(GET_LAST_TRANSFER_BEFORE);
+        conn.prepare(CREATE_BALANCE_CHECKPOINTS);
+        conn.prepare(SAVE_DAILY_BALANCE);
+        conn.prepare(CREATE_ACCOUNT);
+
+        conn.prepare(GET_TRANSFERS);
+        conn.prepare(GET_TRANSFER_PAGE);
+        conn.prepare(GET_ALL_TRANSFERS_PAGE);
+        conn.prepare(GET_LAST_TRANSFER_ID);
+        conn.prepare(MAKE_TRANSFER);
+
+        conn.prepare(GET_CURRENCIES);
+        conn.prepare(GET_EXCHANGE_RATES);
     }
 
 
     // CUSTOMERS
-    Customer getCustomer(int id) {
-        try {
+    /**
+     * Get a customer, served from the cache if it was fetched recently
+     */
+    public Customer getCustomer(int id) {
+        return customers.get(id, this::fetchCustomer);
+    }
+
+    private Customer fetchCustomer(int id) {
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement getCustomer = conn.prepare(GET_CUSTOMER);
             getCustomer.setInt(1, id);
 
             try (ResultSet rs = getCustomer.executeQuery()) {
@@ -163,7 +441,8 @@ public class Database implements Closeable {
 
     List<Customer> getCustomers() {
         List<Customer> list = new ArrayList<>();
-        try (ResultSet rs = getCustomers.executeQuery()) {
+        try (PooledConnection conn = pool.acquire();
+             ResultSet rs = conn.prepare(GET_CUSTOMERS).executeQuery()) {
             while(rs.next()) {
                 list.add(customerFromResultSet(rs));
             }
@@ -173,6 +452,40 @@ public class Database implements Closeable {
         return list;
     }
 
+    /**
+     * Pass all customers to the consumer in the order of their ids
+     * Customers are fetched page by page and streamed from the server, so memory use does not grow with their number
+     * @return Whether all customers could be fetched
+     */
+    public boolean forEachCustomer(Consumer<Customer> consumer) {
+        int lastId = 0;
+        int fetched;
+
+        do {
+            fetched = 0;
+            try (PooledConnection conn = pool.acquire()) {
+                PreparedStatement getCustomerPage = conn.prepare(GET_CUSTOMER_PAGE);
+                getCustomerPage.setInt(1, lastId);
+                getCustomerPage.setInt(2, pageSize);
+                streamResults(getCustomerPage);
+
+                try (ResultSet rs = getCustomerPage.executeQuery()) {
+                    while (rs.next()) {
+                        Customer c = customerFromResultSet(rs);
+                        lastId = c.getId();
+                        fetched++;
+                        consumer.accept(c);
+                    }
+                }
+            } catch (SQLException e) {
+                log.log(Level.SEVERE, "error fetching customers", e);
+                return false;
+            }
+        } while (fetched == pageSize);
+
+        return true;
+    }
+
     private Customer customerFromResultSet(ResultSet rs) throws SQLException {
         return new Customer(
                 rs.getInt(1),
@@ -183,25 +496,153 @@ public class Database implements Closeable {
                 rs.getInt(6));
     }
 
-    boolean createCustomer(Customer c) {
-        try {
-            createCustomer.setString(1, c.getName());
-            createCustomer.setString(2, c.getAddress());
-            createCustomer.setString(3, c.getEmail());
-            createCustomer.setString(4, c.getPhone());
-
-            int result = createCustomer.executeUpdate();
-            return result == 1;
+    public boolean createCustomer(Customer c) {
+        try (PooledConnection conn = pool.acquire()) {
+            return insertCustomer(conn, c);
         } catch (SQLException e) {
             log.log(Level.SEVERE, "error creating customer", e);
             return false;
+        } finally {
+            // The new customer's id is not known here
+            customers.invalidateAll();
         }
     }
 
+    /**
+     * Create many customers using JDBC batches, committing one transaction per batch
+     * The generated id is set on every created customer
+     * If a batch fails, its customers are retried one by one so that only the faulty ones are rejected
+     * @return Success or failure of every customer, in list order
+     */
+    BatchResult createCustomers(List<Customer> newCustomers) {
+        BatchResult result = new BatchResult();
+        try (PooledConnection conn = pool.acquire()) {
+            for (int from = 0; from < newCustomers.size(); from += batchSize) {
+                List<Customer> batch = newCustomers.subList(from, Math.min(newCustomers.size(), from + batchSize));
+                if (createCustomerBatch(conn, batch)) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        result.succeeded();
+                    }
+                    continue;
+                }
+
+                log.info("retrying batch of " + batch.size() + " customers one by one");
+                for (Customer c : batch) {
+                    try {
+                        if (insertCustomer(conn, c)) {
+                            result.succeeded();
+                        } else {
+                            result.failed();
+                        }
+                    } catch (SQLException e) {
+                        log.log(Level.SEVERE, "error creating customer " + c.getName(), e);
+                        result.failed();
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error creating customers", e);
+            while (result.getTotal() < newCustomers.size()) {
+                result.failed();
+            }
+        } finally {
+            customers.invalidateAll();
+        }
+        return result;
+    }
+
+    private boolean insertCustomer(PooledConnection conn, Customer c) throws SQLException {
+        PreparedStatement createCustomer = conn.prepare(CREATE_CUSTOMER);
+        setCustomerParameters(createCustomer, c);
+
+        int result = createCustomer.executeUpdate();
+        if (result != 1) {
+            return false;
+        }
+
+        try (ResultSet rs = conn.prepare(GET_LAST_INSERT_ID).executeQuery()) {
+            rs.next();
+            c.setId(rs.getInt(1));
+        }
+        return true;
+    }
+
+    /**
+     * Insert all customers in one transaction and set their generated ids
+     * @return Whether the transaction was committed, otherwise it has been rolled back
+     */
+    private boolean createCustomerBatch(PooledConnection conn, List<Customer> batch) throws SQLException {
+        PreparedStatement createCustomer = conn.prepareReturningKeys(CREATE_CUSTOMER);
+        conn.getConnection().setAutoCommit(false);
 
-    // ACCOUNTS
-    Account getAccount(Account.Reference ref) {
         try {
+            for (Customer c : batch) {
+                setCustomerParameters(createCustomer, c);
+                createCustomer.addBatch();
+            }
+
+            boolean success = allSingleRow(createCustomer.executeBatch());
+            if (success) {
+                // Keys are returned in insert order, also for rewritten multi-row inserts
+                try (ResultSet keys = createCustomer.getGeneratedKeys()) {
+                    for (Customer c : batch) {
+                        if (!keys.next()) {
+                            success = false;
+                            break;
+                        }
+                        c.setId(keys.getInt(1));
+                    }
+                }
+            }
+
+            if (success) {
+                conn.getConnection().commit();
+            } else {
+                conn.getConnection().rollback();
+                for (Customer c : batch) {
+                    c.setId(0);
+                }
+            }
+            return success;
+        } catch (BatchUpdateException e) {
+            log.log(Level.WARNING, "error in customer batch", e);
+            conn.getConnection().rollback();
+            for (Customer c : batch) {
+                c.setId(0);
+            }
+            return false;
+        } catch (SQLException e) {
+            // Restoring autocommit below would otherwise commit customers whose ids were not read
+            conn.getConnection().rollback();
+            for (Customer c : batch) {
+                c.setId(0);
+            }
+            throw e;
+        } finally {
+            createCustomer.clearBatch();
+            conn.getConnection().setAutoCommit(true);
+        }
+    }
+
+    private static void setCustomerParameters(PreparedStatement statement, Customer c) throws SQLException {
+        statement.setString(1, c.getName());
+        statement.setString(2, c.getAddress());
+        statement.setString(3, c.getEmail());
+        statement.setString(4, c.getPhone());
+    }
+
+
+    // ACCOUNTS
+    /**
+     * Get an account, served from the cache if it was fetched recently
+     */
+    public Account getAccount(Account.Reference ref) {
+        return accounts.get(ref, this::fetchAccount);
+    }
+
+    private Account fetchAccount(Account.Reference ref) {
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement getAccount = conn.prepare(GET_ACCOUNT);
             getAccount.setInt(1, ref.getCustomerId());
             getAccount.setInt(2, ref.getAccountNumber());
 
@@ -216,14 +657,18 @@ public class Database implements Closeable {
         return null;
     }
 
-    List<Account> getAccounts(int customerId) {
+    /**
+     * Get all accounts of a customer together with their current balances in one query
+     */
+    public List<Account> getAccountsWithBalances(int customerId) {
         List<Account> list = new ArrayList<>();
-        try {
-            getAccounts.setInt(1, customerId);
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement getAccountsWithBalances = conn.prepare(GET_ACCOUNTS_WITH_BALANCES);
+            getAccountsWithBalances.setInt(1, customerId);
 
-            try (ResultSet rs = getAccounts.executeQuery()) {
+            try (ResultSet rs = getAccountsWithBalances.executeQuery()) {
                 while(rs.next()) {
-                    list.add(accountFromResultSet(rs));
+                    list.add(accountWithBalanceFromResultSet(rs));
                 }
             }
         } catch (SQLException e) {
@@ -232,57 +677,428 @@ public class Database implements Closeable {
         return list;
     }
 
+    /**
+     * Pass all accounts with their current balances to the consumer, ordered by primary key
+     * Accounts are fetched page by page and streamed from the server, like customers
+     * @return Whether all accounts could be fetched
+     */
+    boolean forEachAccount(Consumer<Account> consumer) {
+        int lastCustomerId = 0;
+        int lastAccountNumber = 0;
+        int fetched;
+
+        do {
+            fetched = 0;
+            try (PooledConnection conn = pool.acquire()) {
+                PreparedStatement getAccountPage = conn.prepare(GET_ACCOUNT_PAGE);
+                getAccountPage.setInt(1, lastCustomerId);
+                getAccountPage.setInt(2, lastCustomerId);
+                getAccountPage.setInt(3, lastAccountNumber);
+                getAccountPage.setInt(4, pageSize);
+                streamResults(getAccountPage);
+
+                try (ResultSet rs = getAccountPage.executeQuery()) {
+                    while (rs.next()) {
+                        Account a = accountWithBalanceFromResultSet(rs);
+                        lastCustomerId = a.getRef().getCustomerId();
+                        lastAccountNumber = a.getRef().getAccountNumber();
+                        fetched++;
+                        consumer.accept(a);
+                    }
+                }
+            } catch (SQLException e) {
+                log.log(Level.SEVERE, "error fetching accounts", e);
+                return false;
+            }
+        } while (fetched == pageSize);
+
+        return true;
+    }
+
+    /**
+     * Get all accounts of many customers together with their current balances
+     * Needs one query per batchsize customers
+     * @return Accounts by customer id, in the order of the given ids, customers without accounts are left out
+     */
+    Map<Integer, List<Account>> getAccountsWithBalances(Collection<Integer> customerIds) {
+        Map<Integer, List<Account>> accounts = new LinkedHashMap<>();
+        for (Integer id : customerIds) {
+            accounts.put(id, null);
+        }
+
+        List<Integer> ids = new ArrayList<>(accounts.keySet());
+        for (int start = 0; start < ids.size(); start += batchSize) {
+            List<Integer> chunk = ids.subList(start, Math.min(ids.size(), start + batchSize));
+
+            // Not cached, the statement differs with the number of customers
+            String sql = String.format(GET_ACCOUNTS_WITH_BALANCES_FOR_CUSTOMERS,
+                    String.join(", ", Collections.nCopies(chunk.size(), "?")));
+            try (PooledConnection conn = pool.acquire();
+                 PreparedStatement getAccountsWithBalances = conn.getConnection().prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    getAccountsWithBalances.setInt(i + 1, chunk.get(i));
+                }
+
+                try (ResultSet rs = getAccountsWithBalances.executeQuery()) {
+                    while (rs.next()) {
+                        Account a = accountWithBalanceFromResultSet(rs);
+                        List<Account> list = accounts.get(a.getRef().getCustomerId());
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            accounts.put(a.getRef().getCustomerId(), list);
+                        }
+                        list.add(a);
+                    }
+                }
+            } catch (SQLException e) {
+                log.log(Level.SEVERE, "error fetching accounts", e);
+            }
+        }
+
+        accounts.values().removeIf(Objects::isNull);
+        return accounts;
+    }
+
     private Account accountFromResultSet(ResultSet rs) throws SQLException {
         return new Account(
                 rs.getInt(1),
                 rs.getInt(2),
-                new Amount(rs.getDouble(4), rs.getString(3)));
+                new Amount(rs.getBigDecimal(4), rs.getString(3)));
     }
 
-    Amount getAccountBalance(Account.Reference ref) {
-        try {
-            getAccountBalance.setInt(1, ref.getCustomerId());
-            getAccountBalance.setInt(2, ref.getAccountNumber());
-            getAccountBalance.setInt(3, ref.getCustomerId());
-            getAccountBalance.setInt(4, ref.getAccountNumber());
-            getAccountBalance.setInt(5, ref.getCustomerId());
-            getAccountBalance.setInt(6, ref.getAccountNumber());
-            getAccountBalance.setInt(7, ref.getCustomerId());
-            getAccountBalance.setInt(8, ref.getAccountNumber());
-            getAccountBalance.setInt(9, ref.getCustomerId());
-            getAccountBalance.setInt(10, ref.getAccountNumber());
-
-            try (ResultSet rs = getAccountBalance.executeQuery()) {
+    private Account accountWithBalanceFromResultSet(ResultSet rs) throws SQLException {
+        return new Account(
+                rs.getInt(1),
+                rs.getInt(2),
+                new Amount(rs.getBigDecimal(4), rs.getString(3)),
+                new Amount(rs.getBigDecimal(5), rs.getString(3)));
+    }
+
+    public Amount getAccountBalance(Account.Reference ref) {
+        try (PooledConnection conn = pool.acquire()) {
+            return getAccountBalance(conn, ref);
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error fetching account balance", e);
+        }
+        return null;
+    }
+
+    private Amount getAccountBalance(PooledConnection conn, Account.Reference ref) throws SQLException {
+        PreparedStatement getAccountBalance = conn.prepare(GET_ACCOUNT_BALANCE);
+        getAccountBalance.setInt(1, ref.getCustomerId());
+        getAccountBalance.setInt(2, ref.getAccountNumber());
+
+        try (ResultSet rs = getAccountBalance.executeQuery()) {
+            if (rs.next()) {
+                return new Amount(rs.getBigDecimal(1), rs.getString(2));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recompute all balances from the transfers and compare them to the maintained current balances
+     * @return References of all accounts whose current balance has drifted, empty if all are consistent,
+     * null on error
+     */
+    List<Account.Reference> verifyAccountBalances() {
+        List<Account.Reference> list = new ArrayList<>();
+        try (PooledConnection conn = pool.acquire();
+             ResultSet rs = conn.prepare(VERIFY_ACCOUNT_BALANCES).executeQuery()) {
+            while (rs.next()) {
+                Account.Reference ref = new Account.Reference(rs.getInt(1), rs.getInt(2));
+                log.warning("balance of account " + ref + " has drifted: current " + rs.getBigDecimal(4)
+                        + " " + rs.getString(3) + ", computed " + rs.getBigDecimal(5) + " " + rs.getString(3));
+                list.add(ref);
+            }
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error verifying account balances", e);
+            return null;
+        }
+        return list;
+    }
+
+    /**
+     * Recompute all current balances from the transfers, e.g. after drift has been detected
+     */
+    boolean rebuildAccountBalances() {
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement rebuildAccountBalances = conn.prepare(REBUILD_ACCOUNT_BALANCES);
+            int result = rebuildAccountBalances.executeUpdate();
+            log.info("rebuilt balances of " + result + " accounts");
+            return true;
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error rebuilding account balances", e);
+            return false;
+        }
+    }
+
+    /**
+     * Balance of an account at a point in time, from the latest checkpoint before it and the transfers since
+     * @return The balance in the account's currency or null if the account does not exist
+     */
+    Amount getAccountBalanceAsOf(Account.Reference ref, LocalDateTime time) {
+        Timestamp timestamp = Timestamp.valueOf(time);
+
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement getBalanceCheckpoint = conn.prepare(GET_BALANCE_CHECKPOINT);
+            getBalanceCheckpoint.setInt(1, ref.getCustomerId());
+            getBalanceCheckpoint.setInt(2, ref.getAccountNumber());
+            getBalanceCheckpoint.setTimestamp(3, timestamp);
+
+            // Without a checkpoint, all transfers are counted from the initial balance
+            BigDecimal checkpointBalance = null;
+            int lastTransferId = 0;
+            try (ResultSet rs = getBalanceCheckpoint.executeQuery()) {
                 if (rs.next()) {
-                    return new Amount(rs.getDouble(1), rs.getString(2));
+                    checkpointBalance = rs.getBigDecimal(1);
+                    lastTransferId = rs.getInt(2);
+                }
+            }
+
+            PreparedStatement getAccountBalanceAsOf = conn.prepare(GET_ACCOUNT_BALANCE_AS_OF);
+            getAccountBalanceAsOf.setBigDecimal(1, checkpointBalance);
+            for (int i = 0; i < 4; i++) {
+                // Later transfers executed up to the time, then earlier transfers executed after it
+                int index = 2 + i * 2;
+                if (i % 2 == 0) {
+                    getAccountBalanceAsOf.setInt(index, lastTransferId);
+                    getAccountBalanceAsOf.setTimestamp(index + 1, timestamp);
+                } else {
+                    getAccountBalanceAsOf.setTimestamp(index, timestamp);
+                    getAccountBalanceAsOf.setInt(index + 1, lastTransferId);
+                }
+            }
+            getAccountBalanceAsOf.setInt(10, ref.getCustomerId());
+            getAccountBalanceAsOf.setInt(11, ref.getAccountNumber());
+
+            try (ResultSet rs = getAccountBalanceAsOf.executeQuery()) {
+                if (rs.next()) {
+                    return new Amount(rs.getBigDecimal(1), rs.getString(2));
                 }
             }
         } catch (SQLException e) {
-            log.log(Level.SEVERE, "error fetching account balance", e);
+            log.log(Level.SEVERE, "error fetching account balance as of " + time, e);
         }
         return null;
     }
 
-    boolean createAccount(Account a) {
-        try {
-            createAccount.setInt(1, a.getRef().getCustomerId());
-            createAccount.setInt(2, a.getRef().getAccountNumber());
-            createAccount.setString(3, a.getInitialBalance().getCurrency());
-            createAccount.setDouble(4, a.getInitialBalance().getAmount());
+    /**
+     * Store the end of day balance and interest of every account in one transaction, sent in batches
+     * A failure rolls back the whole day, so a date is either complete or not stored at all
+     * @param keys Packed keys of the accounts, see Account.Reference.key
+     * @param balances Balances in units of the accounts' currencies
+     * @param interest Interest accrued for the day in units of the accounts' currencies
+     * @param lastTransferId Highest transfer id included in the balances
+     * @return Whether all balances were stored
+     */
+    boolean saveDailyBalances(LocalDate date, long[] keys, long[] balances, long[] interest, int count,
+                              int lastTransferId) {
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement saveDailyBalance = conn.prepare(SAVE_DAILY_BALANCE);
+            Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+
+            try {
+                for (int i = 0; i < count; i++) {
+                    saveDailyBalance.setInt(1, Account.Reference.customerId(keys[i]));
+                    saveDailyBalance.setInt(2, Account.Reference.accountNumber(keys[i]));
+                    saveDailyBalance.setDate(3, Date.valueOf(date));
+                    saveDailyBalance.setBigDecimal(4, BigDecimal.valueOf(balances[i], Amount.SCALE));
+                    saveDailyBalance.setBigDecimal(5, BigDecimal.valueOf(interest[i], Amount.SCALE));
+                    saveDailyBalance.setInt(6, lastTransferId);
+                    saveDailyBalance.addBatch();
+
+                    if ((i + 1) % batchSize == 0 || i == count - 1) {
+                        saveDailyBalance.executeBatch();
+                    }
+                }
+                c.commit();
+                return true;
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                saveDailyBalance.clearBatch();
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error saving daily balances for " + date, e);
+            return false;
+        }
+    }
+
+    /**
+     * Write balance checkpoints now instead of waiting for the next scheduled run
+     */
+    boolean checkpointBalances() {
+        return checkpoints.run();
+    }
+
+    /**
+     * Write a checkpoint for every account, built from the previous checkpoints and the transfers since
+     * A checkpoint includes all transfers up to its last transfer id, which is the last transfer executed up to asOf
+     * The whole round is one transaction, so the next round can rely on every account having a checkpoint
+     * @param asOf Must lie far enough in the past that no transfer executed before it is still uncommitted,
+     *             otherwise it would be missing from all later checkpoints
+     * @return Whether the checkpoints were written, also if there was nothing to do
+     */
+    boolean createBalanceCheckpoints(LocalDateTime asOf) {
+        try (PooledConnection conn = pool.acquire()) {
+            Timestamp previousAsOf = null;
+            int previousTransferId = 0;
+            try (ResultSet rs = conn.prepare(GET_LATEST_CHECKPOINT).executeQuery()) {
+                if (rs.next()) {
+                    previousAsOf = rs.getTimestamp(1);
+                    previousTransferId = rs.getInt(2);
+                }
+            }
+
+            Timestamp timestamp = Timestamp.valueOf(asOf);
+            if (previousAsOf != null && !timestamp.after(previousAsOf)) {
+                log.info("balance checkpoints as of " + previousAsOf + " are up to date");
+                return true;
+            }
+
+            PreparedStatement getLastTransferBefore = conn.prepare(GET_LAST_TRANSFER_BEFORE);
+            getLastTransferBefore.setInt(1, previousTransferId);
+            getLastTransferBefore.setTimestamp(2, timestamp);
+            int lastTransferId = previousTransferId;
+            try (ResultSet rs = getLastTransferBefore.executeQuery()) {
+                if (rs.next()) {
+                    lastTransferId = rs.getInt(1);
+                }
+            }
+
+            PreparedStatement createBalanceCheckpoints = conn.prepare(CREATE_BALANCE_CHECKPOINTS);
+            createBalanceCheckpoints.setTimestamp(1, timestamp);
+            createBalanceCheckpoints.setInt(2, lastTransferId);
+            // Matches no checkpoint in the first round
+            createBalanceCheckpoints.setTimestamp(3, previousAsOf);
+            createBalanceCheckpoints.setInt(4, previousTransferId);
+            createBalanceCheckpoints.setInt(5, lastTransferId);
+            createBalanceCheckpoints.setInt(6, previousTransferId);
+            createBalanceCheckpoints.setInt(7, lastTransferId);
+
+            conn.getConnection().setAutoCommit(false);
+            int created = createBalanceCheckpoints.executeUpdate();
+            conn.getConnection().commit();
+            conn.getConnection().setAutoCommit(true);
+
+            log.info("created " + created + " balance checkpoints as of " + asOf
+                    + " with transfers " + previousTransferId + " to " + lastTransferId);
+            return true;
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error creating balance checkpoints", e);
+            return false;
+        }
+    }
+
+    public boolean createAccount(Account a) {
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement createAccount = conn.prepare(CREATE_ACCOUNT);
+            setAccountParameters(createAccount, a);
 
             int result = createAccount.executeUpdate();
             return result == 1;
         } catch (SQLException e) {
             log.log(Level.SEVERE, "error creating account", e);
             return false;
+        } finally {
+            // The customer's number of accounts has changed
+            customers.invalidate(a.getRef().getCustomerId());
+            accounts.invalidate(a.getRef());
+        }
+    }
+
+    /**
+     * Create many accounts using JDBC batches, committing one transaction per batch
+     * If a batch fails, its accounts are retried one by one so that only the faulty ones are rejected
+     * @return Success or failure of every account, in list order
+     */
+    BatchResult createAccounts(List<Account> newAccounts) {
+        BatchResult result = new BatchResult();
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement createAccount = conn.prepare(CREATE_ACCOUNT);
+
+            for (int from = 0; from < newAccounts.size(); from += batchSize) {
+                List<Account> batch = newAccounts.subList(from, Math.min(newAccounts.size(), from + batchSize));
+                boolean success;
+                conn.getConnection().setAutoCommit(false);
+                try {
+                    for (Account a : batch) {
+                        setAccountParameters(createAccount, a);
+                        createAccount.addBatch();
+                    }
+                    success = allSingleRow(createAccount.executeBatch());
+                    if (success) {
+                        conn.getConnection().commit();
+                    } else {
+                        conn.getConnection().rollback();
+                    }
+                } catch (BatchUpdateException e) {
+                    log.log(Level.WARNING, "error in account batch", e);
+                    conn.getConnection().rollback();
+                    success = false;
+                } catch (SQLException e) {
+                    // Restoring autocommit below would otherwise commit the rows written so far
+                    conn.getConnection().rollback();
+                    throw e;
+                } finally {
+                    createAccount.clearBatch();
+                    conn.getConnection().setAutoCommit(true);
+                }
+
+                if (success) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        result.succeeded();
+                    }
+                    continue;
+                }
+
+                log.info("retrying batch of " + batch.size() + " accounts one by one");
+                for (Account a : batch) {
+                    try {
+                        setAccountParameters(createAccount, a);
+                        if (createAccount.executeUpdate() == 1) {
+                            result.succeeded();
+                        } else {
+                            result.failed();
+                        }
+                    } catch (SQLException e) {
+                        log.log(Level.SEVERE, "error creating account " + a.getRef(), e);
+                        result.failed();
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error creating accounts", e);
+            while (result.getTotal() < newAccounts.size()) {
+                result.failed();
+            }
+        } finally {
+            for (Account a : newAccounts) {
+                customers.invalidate(a.getRef().getCustomerId());
+                accounts.invalidate(a.getRef());
+            }
         }
+        return result;
+    }
+
+    private static void setAccountParameters(PreparedStatement statement, Account a) throws SQLException {
+        statement.setInt(1, a.getRef().getCustomerId());
+        statement.setInt(2, a.getRef().getAccountNumber());
+        statement.setString(3, a.getInitialBalance().getCurrency());
+        statement.setBigDecimal(4, a.getInitialBalance().toBigDecimal());
+        statement.setBigDecimal(5, a.getInitialBalance().toBigDecimal());
     }
 
 
     // TRANSFERS
     List<Transfer> getTransfers(Account.Reference ref) {
         List<Transfer> list = new ArrayList<>();
-        try {
+        try (PooledConnection conn = pool.acquire()) {
+            PreparedStatement getTransfers = conn.prepare(GET_TRANSFERS);
             getTransfers.setInt(1, ref.getCustomerId());
             getTransfers.setInt(2, ref.getAccountNumber());
             getTransfers.setInt(3, ref.getCustomerId());
@@ -299,6 +1115,134 @@ public class Database implements Closeable {
         return list;
     }
 
+    /**
+     * Pass all transfers of an account to the consumer, ordered by execution date
+     * Transfers are fetched page by page, continuing after the execution date and id of the previous page,
+     * so memory use does not grow with the length of the history
+     * Every page is read into memory and the connection released before it is passed on, so a slow consumer,
+     * e.g. one writing to a network client, does not hold a pooled connection or an open result
+     * @param from Earliest execution date (inclusive), null for no limit
+     * @param to Latest execution date (exclusive), null for no limit
+     * @return Whether all transfers could be fetched
+     */
+    public boolean forEachTransfer(Account.Reference ref, LocalDateTime from, LocalDateTime to,
+                                   Consumer<Transfer> consumer) {
+        Timestamp lastDate = from == null ? MIN_DATE : Timestamp.valueOf(from);
+        int lastId = 0;
+        Timestamp end = to == null ? MAX_DATE : Timestamp.valueOf(to);
+        List<Transfer> page = new ArrayList<>(pageSize);
+
+        do {
+            page.clear();
+            try (PooledConnection conn = pool.acquire()) {
+                PreparedStatement getTransferPage = conn.prepare(GET_TRANSFER_PAGE);
+                // Outgoing
+                getTransferPage.setInt(1, ref.getCustomerId());
+                getTransferPage.setInt(2, ref.getAccountNumber());
+                getTransferPage.setTimestamp(3, lastDate);
+                getTransferPage.setTimestamp(4, lastDate);
+                getTransferPage.setInt(5, lastId);
+                getTransferPage.setTimestamp(6, end);
+                getTransferPage.setInt(7, pageSize);
+                // Incoming, transfers to the same account are already outgoing
+                getTransferPage.setInt(8, ref.getCustomerId());
+                getTransferPage.setInt(9, ref.getAccountNumber());
+                getTransferPage.setInt(10, ref.getCustomerId());
+                getTransferPage.setInt(11, ref.getAccountNumber());
+                getTransferPage.setTimestamp(12, lastDate);
+                getTransferPage.setTimestamp(13, lastDate);
+                getTransferPage.setInt(14, lastId);
+                getTransferPage.setTimestamp(15, end);
+                getTransferPage.setInt(16, pageSize);
+                getTransferPage.setInt(17, pageSize);
+
+                try (ResultSet rs = getTransferPage.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(transferFromResultSet(rs));
+                    }
+                }
+            } catch (SQLException e) {
+                log.log(Level.SEVERE, "error fetching transfers", e);
+                return false;
+            }
+
+            for (Transfer t : page) {
+                consumer.accept(t);
+            }
+            if (!page.isEmpty()) {
+                Transfer last = page.get(page.size() - 1);
+                lastDate = Timestamp.valueOf(last.getExecutionDate());
+                lastId = last.getId();
+            }
+        } while (page.size() == pageSize);
+
+        return true;
+    }
+
+    /**
+     * Pass all transfers to the consumer, ordered by id
+     * Transfers are fetched page by page and streamed from the server, without the names of sender and receiver
+     * @return Whether all transfers could be fetched
+     */
+    boolean forEachTransfer(Consumer<Transfer> consumer) {
+        return forEachTransfer(0, Integer.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Like forEachTransfer, for the transfers with ids in a range, e.g. to read disjoint ranges in parallel
+     * @param afterId Highest id before the range (exclusive)
+     * @param toId Highest id in the range (inclusive)
+     */
+    boolean forEachTransfer(int afterId, int toId, Consumer<Transfer> consumer) {
+        int lastId = afterId;
+        int fetched;
+
+        do {
+            fetched = 0;
+            try (PooledConnection conn = pool.acquire()) {
+                PreparedStatement getAllTransfersPage = conn.prepare(GET_ALL_TRANSFERS_PAGE);
+                getAllTransfersPage.setInt(1, lastId);
+                getAllTransfersPage.setInt(2, toId);
+                getAllTransfersPage.setInt(3, pageSize);
+                streamResults(getAllTransfersPage);
+
+                try (ResultSet rs = getAllTransfersPage.executeQuery()) {
+                    while (rs.next()) {
+                        Transfer t = new Transfer(
+                                rs.getInt(1),
+                                new Account.Reference(rs.getInt(2), rs.getInt(3)),
+                                new Account.Reference(rs.getInt(4), rs.getInt(5)),
+                                new Amount(rs.getBigDecimal(6), rs.getString(7)),
+                                rs.getTimestamp(8).toLocalDateTime(),
+                                rs.getString(9));
+                        lastId = t.getId();
+                        fetched++;
+                        consumer.accept(t);
+                    }
+                }
+            } catch (SQLException e) {
+                log.log(Level.SEVERE, "error fetching transfers", e);
+                return false;
+            }
+        } while (fetched == pageSize);
+
+        return true;
+    }
+
+    /**
+     * @return The highest transfer id, 0 if there are no transfers or -1 on error
+     */
+    int getLastTransferId() {
+        try (PooledConnection conn = pool.acquire();
+             ResultSet rs = conn.prepare(GET_LAST_TRANSFER_ID).executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error fetching last transfer id", e);
+            return -1;
+        }
+    }
+
     private Transfer transferFromResultSet(ResultSet rs) throws SQLException {
         return new Transfer(
                 rs.getInt(1),
@@ -306,35 +1250,368 @@ public class Database implements Closeable {
                 rs.getString(4),
                 new Account.Reference(rs.getInt(5), rs.getInt(6)),
                 rs.getString(7),
-                new Amount(rs.getDouble(8), rs.getString(9)),
+                new Amount(rs.getBigDecimal(8), rs.getString(9)),
                 rs.getTimestamp(10).toLocalDateTime(),
                 rs.getString(11));
     }
 
+    /**
+     * Insert the transfer and apply it to the current balances of sender and receiver in one transaction
+     */
     boolean makeTransfer(Transfer t) {
+        try (PooledConnection conn = pool.acquire()) {
+            return makeTransfer(conn, t);
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error making transfer", e);
+            return false;
+        }
+    }
+
+    // Returning the connection to the pool rolls back if the transaction did not complete
+    private boolean makeTransfer(PooledConnection conn, Transfer t) throws SQLException {
+        conn.getConnection().setAutoCommit(false);
+
+        boolean success = insertTransfer(conn, t);
+
+        if (success) {
+            conn.getConnection().commit();
+        } else {
+            conn.getConnection().rollback();
+        }
+        conn.getConnection().setAutoCommit(true);
+        return success;
+    }
+
+    /**
+     * Insert the transfer and apply it to both balances, within the caller's transaction
+     */
+    private boolean insertTransfer(PooledConnection conn, Transfer t) throws SQLException {
+        PreparedStatement makeTransfer = conn.prepare(MAKE_TRANSFER);
+        setTransferParameters(makeTransfer, t);
+
+        return makeTransfer.executeUpdate() == 1
+                && updateAccountBalance(conn, t.getSender(), -t.getAmount().getUnits(), t.getAmount().getCurrency())
+                && updateAccountBalance(conn, t.getReceiver(), t.getAmount().getUnits(), t.getAmount().getCurrency());
+    }
+
+    /**
+     * Make the transfer only if the sender's balance covers it
+     * Both accounts stay locked from the funds check until the transfer is committed,
+     * so concurrent transfers within this process cannot both spend the same funds
+     * With group commit enabled, the transfer is made in a transaction shared with concurrent ones
+     */
+    public TransferResult makeCheckedTransfer(Transfer t) {
+        if (commitQueue != null) {
+            return commitQueue.submit(t).join();
+        }
+
+        // All conversions of this transfer use the same rates
+        ExchangeRates.Snapshot snapshot = rates.get();
+
+        locks.lock(t.getSender(), t.getReceiver());
+        try (PooledConnection conn = pool.acquire()) {
+            TransferResult result = checkFunds(conn, snapshot, t);
+            if (result != TransferResult.SUCCESS) {
+                return result;
+            }
+
+            return makeTransfer(conn, t) ? TransferResult.SUCCESS : TransferResult.FAILED;
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error making transfer", e);
+            return TransferResult.FAILED;
+        } finally {
+            locks.unlock(t.getSender(), t.getReceiver());
+        }
+    }
+
+    boolean isGroupCommitEnabled() {
+        return commitQueue != null;
+    }
+
+    /**
+     * Make the transfer like makeCheckedTransfer without blocking the caller
+     * Only asynchronous with group commit enabled, otherwise the transfer is made before this returns
+     */
+    public CompletableFuture<TransferResult> submitTransfer(Transfer t) {
+        if (commitQueue != null) {
+            return commitQueue.submit(t);
+        }
+        return CompletableFuture.completedFuture(makeCheckedTransfer(t));
+    }
+
+    /**
+     * Make many transfers in one transaction, each only if the sender's balance covers it
+     * Funds are checked in list order, so every check sees the transfers before it in the list
+     * A transfer which fails is rolled back to its savepoint without affecting the others
+     * All accounts stay locked until the transaction is committed
+     * @return Result of every transfer, in list order
+     */
+    TransferResult[] makeCheckedTransfers(List<Transfer> transfers) {
+        TransferResult[] results = new TransferResult[transfers.size()];
+        Arrays.fill(results, TransferResult.FAILED);
+
+        ExchangeRates.Snapshot snapshot = rates.get();
+        List<Account.Reference> accounts = new ArrayList<>(transfers.size() * 2);
+        for (Transfer t : transfers) {
+            accounts.add(t.getSender());
+            accounts.add(t.getReceiver());
+        }
+
+        int[] locked = locks.lockAll(accounts);
+        try (PooledConnection conn = pool.acquire()) {
+            Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+            TransferResult[] made = new TransferResult[results.length];
+
+            try {
+                for (int i = 0; i < made.length; i++) {
+                    Transfer t = transfers.get(i);
+                    made[i] = checkFunds(conn, snapshot, t);
+                    if (made[i] != TransferResult.SUCCESS) {
+                        continue;
+                    }
+
+                    Savepoint savepoint = c.setSavepoint();
+                    try {
+                        if (!insertTransfer(conn, t)) {
+                            c.rollback(savepoint);
+                            made[i] = TransferResult.FAILED;
+                        }
+                    } catch (SQLException e) {
+                        log.log(Level.SEVERE, "error making transfer from " + t.getSender()
+                                + " to " + t.getReceiver(), e);
+                        c.rollback(savepoint);
+                        made[i] = TransferResult.FAILED;
+                    }
+                }
+
+                c.commit();
+                results = made;
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error making " + transfers.size() + " transfers in one transaction", e);
+        } finally {
+            locks.unlockAll(locked);
+        }
+        return results;
+    }
+
+    /**
+     * @return SUCCESS if the sender's balance covers the transfer
+     */
+    private TransferResult checkFunds(PooledConnection conn, ExchangeRates.Snapshot snapshot, Transfer t)
+            throws SQLException {
+        Amount senderBalance = getAccountBalance(conn, t.getSender());
+        if (senderBalance == null) {
+            return TransferResult.FAILED;
+        }
+
+        long rate = snapshot.rate(senderBalance.getCurrencyId(), t.getAmount().getCurrencyId());
+        if (rate == ExchangeRates.Snapshot.NO_RATE) {
+            log.severe("no exchange rate from " + senderBalance.getCurrency()
+                    + " to " + t.getAmount().getCurrency());
+            return TransferResult.FAILED;
+        }
+        if (Amount.convert(senderBalance.getUnits(), rate) < t.getAmount().getUnits()) {
+            return TransferResult.INSUFFICIENT_FUNDS;
+        }
+        return TransferResult.SUCCESS;
+    }
+
+    /**
+     * Make many transfers using JDBC batches, committing one transaction per batch
+     * If a batch fails, its transfers are retried one by one so that only the faulty ones are rejected
+     * @return Success or failure of every transfer, in list order
+     */
+    BatchResult makeTransfers(List<Transfer> transfers) {
+        return makeTransfers(transfers.iterator());
+    }
+
+    /**
+     * Make many transfers using JDBC batches, committing one transaction per batch
+     * The iterator is consumed one batch at a time, so arbitrarily many transfers can be streamed through
+     * @return Success or failure of every transfer, in iteration order
+     */
+    BatchResult makeTransfers(Iterator<Transfer> transfers) {
+        BatchResult result = new BatchResult();
+        List<Transfer> batch = new ArrayList<>(batchSize);
+
+        while (transfers.hasNext()) {
+            batch.clear();
+            while (transfers.hasNext() && batch.size() < batchSize) {
+                batch.add(transfers.next());
+            }
+
+            try (PooledConnection conn = pool.acquire()) {
+                if (makeTransferBatch(conn, batch)) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        result.succeeded();
+                    }
+                } else {
+                    log.info("retrying batch of " + batch.size() + " transfers one by one");
+                    for (Transfer t : batch) {
+                        if (makeTransferLogged(conn, t)) {
+                            result.succeeded();
+                        } else {
+                            result.failed();
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                log.log(Level.SEVERE, "error making transfers", e);
+                for (int i = 0; i < batch.size(); i++) {
+                    result.failed();
+                }
+            }
+        }
+
+        log.info("made transfers in batches: " + result);
+        return result;
+    }
+
+    /**
+     * Make transfers using JDBC batches like makeTransfers, but stop at the first batch which fails
+     * Nothing is retried one by one, so the transfers made are always the first ones of the list
+     * @return Success of the first transfers and failure of all from the first failed batch on, in list order
+     */
+    BatchResult makeTransfersInOrder(List<Transfer> transfers) {
+        BatchResult result = new BatchResult();
+        try (PooledConnection conn = pool.acquire()) {
+            for (int from = 0; from < transfers.size(); from += batchSize) {
+                List<Transfer> batch = transfers.subList(from, Math.min(transfers.size(), from + batchSize));
+                if (!makeTransferBatch(conn, batch)) {
+                    break;
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    result.succeeded();
+                }
+            }
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error making transfers in order", e);
+        }
+
+        while (result.getTotal() < transfers.size()) {
+            result.failed();
+        }
+        return result;
+    }
+
+    /**
+     * Insert and apply all transfers in one transaction
+     * @return Whether the transaction was committed, otherwise it has been rolled back
+     */
+    private boolean makeTransferBatch(PooledConnection conn, List<Transfer> batch) throws SQLException {
+        PreparedStatement makeTransfer = conn.prepare(MAKE_TRANSFER);
+        PreparedStatement updateAccountBalance = conn.prepare(UPDATE_ACCOUNT_BALANCE);
+        conn.getConnection().setAutoCommit(false);
+
         try {
-            makeTransfer.setInt(1, t.getSender().getCustomerId());
-            makeTransfer.setInt(2, t.getSender().getAccountNumber());
-            makeTransfer.setInt(3, t.getReceiver().getCustomerId());
-            makeTransfer.setInt(4, t.getReceiver().getAccountNumber());
-            makeTransfer.setDouble(5, t.getAmount().getAmount());
-            makeTransfer.setString(6, t.getAmount().getCurrency());
-            makeTransfer.setObject(7, t.getExecutionDate());
-            makeTransfer.setString(8, t.getReference());
-
-            int result = makeTransfer.executeUpdate();
-            return result == 1;
+            for (Transfer t : batch) {
+                setTransferParameters(makeTransfer, t);
+                makeTransfer.addBatch();
+
+                setBalanceParameters(updateAccountBalance, t.getSender(),
+                        -t.getAmount().getUnits(), t.getAmount().getCurrency());
+                updateAccountBalance.addBatch();
+                setBalanceParameters(updateAccountBalance, t.getReceiver(),
+                        t.getAmount().getUnits(), t.getAmount().getCurrency());
+                updateAccountBalance.addBatch();
+            }
+
+            boolean success = allSingleRow(makeTransfer.executeBatch())
+                    && allSingleRow(updateAccountBalance.executeBatch());
+
+            if (success) {
+                conn.getConnection().commit();
+            } else {
+                conn.getConnection().rollback();
+            }
+            return success;
+        } catch (BatchUpdateException e) {
+            log.log(Level.WARNING, "error in transfer batch", e);
+            conn.getConnection().rollback();
+            return false;
+        } catch (SQLException e) {
+            // Restoring autocommit below would otherwise commit the rows written so far
+            conn.getConnection().rollback();
+            throw e;
+        } finally {
+            // The cached statements must not carry leftover rows into the next batch
+            makeTransfer.clearBatch();
+            updateAccountBalance.clearBatch();
+            conn.getConnection().setAutoCommit(true);
+        }
+    }
+
+    private boolean makeTransferLogged(PooledConnection conn, Transfer t) {
+        try {
+            return makeTransfer(conn, t);
         } catch (SQLException e) {
             log.log(Level.SEVERE, "error making transfer", e);
+            try {
+                conn.getConnection().rollback();
+                conn.getConnection().setAutoCommit(true);
+            } catch (SQLException ignore) {}
             return false;
         }
     }
 
+    private static boolean allSingleRow(int[] updateCounts) {
+        for (int count : updateCounts) {
+            // Rewritten multi-row inserts do not report counts per row
+            if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setTransferParameters(PreparedStatement makeTransfer, Transfer t) throws SQLException {
+        if (t.getId() == 0) {
+            makeTransfer.setNull(1, Types.INTEGER);
+        } else {
+            makeTransfer.setInt(1, t.getId());
+        }
+        makeTransfer.setInt(2, t.getSender().getCustomerId());
+        makeTransfer.setInt(3, t.getSender().getAccountNumber());
+        makeTransfer.setInt(4, t.getReceiver().getCustomerId());
+        makeTransfer.setInt(5, t.getReceiver().getAccountNumber());
+        makeTransfer.setBigDecimal(6, t.getAmount().toBigDecimal());
+        makeTransfer.setString(7, t.getAmount().getCurrency());
+        makeTransfer.setObject(8, t.getExecutionDate());
+        makeTransfer.setString(9, t.getReference());
+    }
+
+    /**
+     * @param units Amount in units of 10^-Amount.SCALE, negative for outgoing transfers
+     */
+    private boolean updateAccountBalance(PooledConnection conn, Account.Reference ref, long units, String currency)
+            throws SQLException {
+        PreparedStatement updateAccountBalance = conn.prepare(UPDATE_ACCOUNT_BALANCE);
+        setBalanceParameters(updateAccountBalance, ref, units, currency);
+
+        return updateAccountBalance.executeUpdate() == 1;
+    }
+
+    private void setBalanceParameters(PreparedStatement updateAccountBalance, Account.Reference ref,
+                                      long units, String currency) throws SQLException {
+        updateAccountBalance.setBigDecimal(1, BigDecimal.valueOf(units, Amount.SCALE));
+        updateAccountBalance.setString(2, currency);
+        updateAccountBalance.setInt(3, ref.getCustomerId());
+        updateAccountBalance.setInt(4, ref.getAccountNumber());
+    }
+
 
     // CURRENCIES
-    List<String> getCurrencies() {
+    public List<String> getCurrencies() {
         List<String> list = new ArrayList<>();
-        try (ResultSet rs = getCurrencies.executeQuery()) {
+        try (PooledConnection conn = pool.acquire();
+             ResultSet rs = conn.prepare(GET_CURRENCIES).executeQuery()) {
             while(rs.next()) {
                 list.add(rs.getString(1));
             }
@@ -344,46 +1621,80 @@ public class Database implements Closeable {
         return list;
     }
 
-    Amount convertCurrency(Amount from, String toCurrency) {
-        try {
-            convertCurrency.setDouble(1, from.getAmount());
-            convertCurrency.setString(2, from.getCurrency());
-            convertCurrency.setString(3, toCurrency);
+    /**
+     * Let the driver stream rows from the server one by one instead of reading the whole result into memory
+     * The connection cannot be used for other queries until the result set is closed
+     */
+    private static void streamResults(PreparedStatement statement) throws SQLException {
+        statement.setFetchSize(Integer.MIN_VALUE);
+    }
 
-            try (ResultSet rs = convertCurrency.executeQuery()) {
-                if (rs.next()) {
-                    return new Amount(rs.getDouble(1), toCurrency);
+    /**
+     * Load all currencies and exchange rates into a new snapshot
+     * @return The snapshot or null if it could not be loaded
+     */
+    private ExchangeRates.Snapshot getExchangeRates(long version) {
+        ExchangeRates.Snapshot.Builder builder = new ExchangeRates.Snapshot.Builder(version);
+        try (PooledConnection conn = pool.acquire()) {
+            try (ResultSet rs = conn.prepare(GET_CURRENCIES).executeQuery()) {
+                while (rs.next()) {
+                    builder.currency(rs.getString(1));
                 }
             }
+            try (ResultSet rs = conn.prepare(GET_EXCHANGE_RATES).executeQuery()) {
+                while (rs.next()) {
+                    builder.rate(rs.getString(1), rs.getString(2), rs.getBigDecimal(3));
+                }
+            }
+            return builder.build();
         } catch (SQLException e) {
-            log.log(Level.SEVERE, "error converting currency", e);
+            log.log(Level.SEVERE, "error fetching exchange rates", e);
         }
         return null;
     }
 
-    @Override
-    public void close() {
-        try {
-            getCustomer.close();
-            getCustomers.close();
-            createCustomer.close();
-
-            getAccount.close();
-            getAccounts.close();
-            getAccountBalance.close();
-            createAccount.close();
+    /**
+     * Reload the exchange rates, e.g. after they have been changed in the database
+     * @return Whether the rates could be loaded, otherwise the previous ones stay in use
+     */
+    boolean refreshExchangeRates() {
+        return rates.refresh();
+    }
 
-            getTransfers.close();
-            makeTransfer.close();
+    /**
+     * Maximum number of database connections, more concurrent callers wait for a connection
+     */
+    int getMaxConnections() {
+        return pool.getMaxSize();
+    }
 
-            getCurrencies.close();
-            convertCurrency.close();
+    /**
+     * Current exchange rates, see ExchangeRates.get
+     */
+    ExchangeRates.Snapshot getRates() {
+        return rates.get();
+    }
 
-            conn.close();
+    public Amount convertCurrency(Amount from, String toCurrency) {
+        Amount converted = rates.get().convert(from, Currencies.id(toCurrency));
+        if (converted == null) {
+            log.severe("no exchange rate from " + from.getCurrency() + " to " + toCurrency);
+        }
+        return converted;
+    }
 
-            log.info("prepared statements and database connection closed");
-        } catch (SQLException e) {
-            log.log(Level.SEVERE, "error when closing prepared statements and database connection", e);
+    @Override
+    public void close() {
+        log.info(locks.toString());
+        log.info(customers.toString());
+        log.info(accounts.toString());
+        checkpoints.close();
+        if (commitQueue != null) {
+            commitQueue.close();
+            log.info(commitQueue.toString());
         }
+        rates.close();
+        pool.close();
+        log.info("prepared statements and database connections closed");
     }
 }
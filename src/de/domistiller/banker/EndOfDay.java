@@ -0,0 +1,101 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.Year;
+import java.util.Properties;
+
+/**
+ * Closing balances and daily interest of all accounts for one business day, stored in daily_balances
+ * Balances come from a single BalanceScan over the transfers executed before the next day
+ *
+ * Interest is set as percent per year, eod.interest for positive balances and eod.overdraftinterest for negative
+ * ones, either can be overridden per currency, e.g. eod.interest.USD
+ * Daily interest is the balance times the rate divided by the days of the year, rounded to Amount.SCALE
+ */
+class EndOfDay {
+
+    private final static BigDecimal HUNDRED = BigDecimal.valueOf(100);
+
+    private final Database db;
+    private final Properties settings;
+
+    EndOfDay(Database db, Properties settings) {
+        this.db = db;
+        this.settings = settings;
+    }
+
+    /**
+     * @return Whether the balances and interest of all accounts were computed and stored
+     */
+    boolean run(LocalDate date) {
+        long start = System.nanoTime();
+        BalanceScan scan = new BalanceScan(db, settings);
+        if (!scan.run(date.plusDays(1).atStartOfDay())) {
+            for (String problem : scan.getProblems()) {
+                System.out.println(problem);
+            }
+            return false;
+        }
+        double scanSeconds = (System.nanoTime() - start) / 1e9;
+
+        // Rates by currency id, looked up once instead of per account
+        int currencyCount = Currencies.count();
+        BigDecimal[] interestRates = new BigDecimal[currencyCount];
+        BigDecimal[] overdraftRates = new BigDecimal[currencyCount];
+        int daysInYear = Year.of(date.getYear()).length();
+        for (int c = 0; c < currencyCount; c++) {
+            interestRates[c] = dailyRate("eod.interest", Currencies.code(c), daysInYear);
+            overdraftRates[c] = dailyRate("eod.overdraftinterest", Currencies.code(c), daysInYear);
+        }
+
+        int size = scan.size();
+        long[] keys = new long[size];
+        long[] balances = new long[size];
+        long[] interest = new long[size];
+        // Total interest by currency id, for the summary
+        long[] totals = new long[currencyCount];
+
+        for (int slot = 0; slot < size; slot++) {
+            keys[slot] = scan.key(slot);
+            balances[slot] = scan.balance(slot);
+
+            int currency = scan.currency(slot);
+            BigDecimal rate = balances[slot] >= 0 ? interestRates[currency] : overdraftRates[currency];
+            if (rate.signum() != 0 && balances[slot] != 0) {
+                interest[slot] = BigDecimal.valueOf(balances[slot]).multiply(rate)
+                        .setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+                totals[currency] = Amount.add(totals[currency], interest[slot]);
+            }
+        }
+
+        if (!db.saveDailyBalances(date, keys, balances, interest, size, scan.getLastTransferId())) {
+            return false;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("End of day %s: %d accounts, %d transfers up to id %d, scanned in %.1f s (%.0f transfers/s), "
+                        + "%.1f s in total\n",
+                date, size, scan.getTransfers(), scan.getLastTransferId(),
+                scanSeconds, scan.getTransfers() / Math.max(scanSeconds, 1e-9), seconds);
+        for (int c = 0; c < currencyCount; c++) {
+            if (totals[c] != 0) {
+                System.out.println("Interest accrued: " + Amount.ofUnits(totals[c], c));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Fraction of a balance accrued per day
+     */
+    private BigDecimal dailyRate(String name, String currency, int daysInYear) {
+        String percent = settings.getProperty(name + "." + currency, settings.getProperty(name, "0"));
+        return new BigDecimal(percent).divide(HUNDRED.multiply(BigDecimal.valueOf(daysInYear)),
+                20, RoundingMode.HALF_EVEN);
+    }
+}
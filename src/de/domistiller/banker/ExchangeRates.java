@@ -0,0 +1,189 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
+
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps all exchange rates in memory, so converting an amount needs no database round trip
+ * Rates are published as immutable snapshots which are replaced as a whole when the rates are refreshed
+ */
+class ExchangeRates implements Closeable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    /**
+     * Loads a new snapshot from the database
+     */
+    interface Loader {
+        /**
+         * @return The snapshot or null if it could not be loaded
+         */
+        Snapshot load(long version);
+    }
+
+    private final Loader loader;
+    private final AtomicLong versions = new AtomicLong();
+    private volatile Snapshot snapshot;
+
+    private ScheduledExecutorService refresher;
+
+    /**
+     * Load the initial rates
+     * @param refreshSeconds Interval of automatic refreshes, 0 to only refresh when triggered
+     */
+    ExchangeRates(Loader loader, long refreshSeconds) {
+        this.loader = loader;
+
+        if (!refresh()) {
+            throw new IllegalStateException("exchange rates could not be loaded");
+        }
+
+        if (refreshSeconds > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "banker-rates-refresher");
+                t.setDaemon(true);
+                return t;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Current rates
+     * Callers should keep the returned snapshot for all conversions that belong together
+     */
+    Snapshot get() {
+        return snapshot;
+    }
+
+    /**
+     * Reload all rates and publish them as a new snapshot
+     * @return Whether the rates were loaded, otherwise the previous snapshot stays in place
+     */
+    boolean refresh() {
+        Snapshot loaded = loader.load(versions.incrementAndGet());
+        if (loaded == null) {
+            log.warning("exchange rates could not be refreshed, keeping version "
+                    + (snapshot == null ? 0 : snapshot.getVersion()));
+            return false;
+        }
+
+        snapshot = loaded;
+        log.info("loaded exchange rates version " + loaded.getVersion());
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Immutable matrix of exchange rates, indexed by interned currency ids
+     * from_rate * from_amount = to_amount, as in the exchangerates table
+     * Rates are fixed-point numbers in units of 10^-Amount.RATE_SCALE
+     */
+    static class Snapshot {
+        /**
+         * Returned by rate if there is no rate for the currencies
+         */
+        static final long NO_RATE = -1;
+
+        private final long version;
+        private final int size;
+        // rates[from * size + to], NO_RATE if there is none
+        private final long[] rates;
+
+        private Snapshot(long version, int size, long[] rates) {
+            this.version = version;
+            this.size = size;
+            this.rates = rates;
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return The rate or NO_RATE if there is none for these currencies
+         */
+        long rate(int fromCurrency, int toCurrency) {
+            if (fromCurrency >= size || toCurrency >= size) {
+                return NO_RATE;
+            }
+            return rates[fromCurrency * size + toCurrency];
+        }
+
+        /**
+         * @return The converted amount or null if there is no rate for these currencies
+         */
+        Amount convert(Amount amount, int toCurrency) {
+            long rate = rate(amount.getCurrencyId(), toCurrency);
+            if (rate == NO_RATE) {
+                return null;
+            }
+            return Amount.ofUnits(Amount.convert(amount.getUnits(), rate), toCurrency);
+        }
+
+
+        /**
+         * Collects the rates of a new snapshot
+         */
+        static class Builder {
+            private final long version;
+            private int size;
+            private long[] rates = new long[0];
+
+            Builder(long version) {
+                this.version = version;
+            }
+
+            /**
+             * Register a currency, also if no rates are known for it
+             */
+            Builder currency(String code) {
+                int id = Currencies.id(code);
+                if (id >= size) {
+                    grow(Currencies.count());
+                }
+                return this;
+            }
+
+            Builder rate(String fromCurrency, String toCurrency, BigDecimal rate) {
+                int from = Currencies.id(fromCurrency);
+                int to = Currencies.id(toCurrency);
+                if (from >= size || to >= size) {
+                    grow(Currencies.count());
+                }
+                rates[from * size + to] = Amount.toRate(rate);
+                return this;
+            }
+
+            private void grow(int newSize) {
+                long[] grown = new long[newSize * newSize];
+                Arrays.fill(grown, NO_RATE);
+                for (int from = 0; from < size; from++) {
+                    System.arraycopy(rates, from * size, grown, from * newSize, size);
+                }
+                rates = grown;
+                size = newSize;
+            }
+
+            Snapshot build() {
+                return new Snapshot(version, size, rates.clone());
+            }
+        }
+    }
+}
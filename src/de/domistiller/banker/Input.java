@@ -5,6 +5,7 @@ import de.domistiller.banker.model.Amount;
 import de.domistiller.banker.model.Customer;
 import de.domistiller.banker.model.Transfer;
 
+import java.math.BigDecimal;
 import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Scanner;
@@ -31,14 +32,14 @@ public class Input {
         }
     }
 
-    private Database db;
+    private Backend db;
     private Scanner in;
 
     // Currencies are cached locally because they are used a lot
     // and are assumed to be static for the duration of an execution
     private List<String> currencies;
 
-    Input(Database db) {
+    Input(Backend db) {
         this.db = db;
         in = new Scanner(System.in);
         currencies = db.getCurrencies();
@@ -214,7 +215,7 @@ public class Input {
     }
 
     private Amount getAmount(String name) {
-        double amount = 0;
+        BigDecimal amount = BigDecimal.ZERO;
         String currency = "";
 
         boolean valid;
@@ -225,17 +226,16 @@ public class Input {
             System.out.print(name + " in " + String.join("/", currencies) + ": ");
 
             try {
-                amount = in.nextDouble();
+                amount = in.nextBigDecimal();
                 currency = in.next();
 
-                // Amount must be positive
-                validAmount = amount > 0;
+                validAmount = isValidAmount(amount);
                 // Currency must exist in database
                 validCurrency = currencies.contains(currency);
             } catch (InputMismatchException ignore) {}
 
             if (!validAmount) {
-                System.out.println("Invalid amount, must be positive number");
+                System.out.println("Invalid amount, must be positive number with at most 2 decimal places");
             } else if (!validCurrency) {
                 System.out.println("Invalid currency");
             }
@@ -249,22 +249,28 @@ public class Input {
         return new Amount(amount, currency);
     }
 
+    /**
+     * Amount must be positive and fit the decimal(10, 2) columns exactly
+     */
+    static boolean isValidAmount(BigDecimal amount) {
+        return amount.signum() > 0 && amount.stripTrailingZeros().scale() <= 2
+                && amount.precision() - amount.scale() <= 8;
+    }
+
     // Other helper methods
     private void listCustomers() {
         System.out.println("CUSTOMERS:");
         System.out.println("ID   NAME");
-        for (Customer c : db.getCustomers()) {
-            System.out.printf("%-2d   %s\n", c.getId(), c.getName());
-        }
+        db.forEachCustomer(c -> System.out.printf("%-2d   %s\n", c.getId(), c.getName()));
     }
 
     private void listAccounts(Customer customer) {
         System.out.println("EXISTING ACCOUNTS FOR CUSTOMER " + customer.getName());
         System.out.println("NO.     BALANCE");
-        for (Account a : db.getAccounts(customer.getId())) {
+        for (Account a : db.getAccountsWithBalances(customer.getId())) {
             System.out.printf("%-3d     %s\n",
                     a.getRef().getAccountNumber(),
-                    db.getAccountBalance(a.getRef())
+                    a.getCurrentBalance()
             );
         }
     }
@@ -0,0 +1,147 @@
+package de.domistiller.banker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the small flat JSON objects sent in requests, e.g. {"name": "Jane", "amount": 12.5}
+ * Values are returned as strings, numbers in their original notation so that amounts stay exact
+ * Nested objects and arrays are not supported
+ */
+class JsonReader {
+
+    // Request bodies are small, anything larger is rejected
+    private final static int MAX_LENGTH = 64 * 1024;
+
+    private final String json;
+    private int pos;
+
+    private JsonReader(String json) {
+        this.json = json;
+    }
+
+    /**
+     * @return Values by name, null for JSON null
+     * @throws IllegalArgumentException If the body is not a flat JSON object
+     */
+    static Map<String, String> readObject(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            body.write(buffer, 0, n);
+            if (body.size() > MAX_LENGTH) {
+                throw new IllegalArgumentException("request body too large");
+            }
+        }
+        return new JsonReader(new String(body.toByteArray(), StandardCharsets.UTF_8)).object();
+    }
+
+    private Map<String, String> object() {
+        Map<String, String> values = new HashMap<>();
+        expect('{');
+        if (peek() == '}') {
+            pos++;
+        } else {
+            char c;
+            do {
+                String name = string();
+                expect(':');
+                values.put(name, value());
+            } while ((c = next()) == ',');
+            if (c != '}') {
+                throw new IllegalArgumentException("expected } at " + pos);
+            }
+        }
+
+        if (peek() != 0) {
+            throw new IllegalArgumentException("unexpected content after object at " + pos);
+        }
+        return values;
+    }
+
+    private String value() {
+        char c = peek();
+        if (c == '"') {
+            return string();
+        }
+
+        int start = pos;
+        while (pos < json.length() && ",} \t\r\n".indexOf(json.charAt(pos)) < 0) {
+            pos++;
+        }
+        String literal = json.substring(start, pos);
+        if (literal.equals("null")) {
+            return null;
+        }
+        if (literal.equals("true") || literal.equals("false") || literal.matches("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?")) {
+            return literal;
+        }
+        throw new IllegalArgumentException("invalid value at " + start);
+    }
+
+    private String string() {
+        expect('"');
+        StringBuilder s = new StringBuilder();
+        while (true) {
+            if (pos >= json.length()) {
+                throw new IllegalArgumentException("unterminated string");
+            }
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                return s.toString();
+            }
+            if (c != '\\') {
+                s.append(c);
+                continue;
+            }
+
+            if (pos >= json.length()) {
+                throw new IllegalArgumentException("unterminated string");
+            }
+            char escaped = json.charAt(pos++);
+            switch (escaped) {
+                case 'n': s.append('\n'); break;
+                case 'r': s.append('\r'); break;
+                case 't': s.append('\t'); break;
+                case 'b': s.append('\b'); break;
+                case 'f': s.append('\f'); break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw new IllegalArgumentException("invalid escape at " + pos);
+                    }
+                    s.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: s.append(escaped);
+            }
+        }
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            throw new IllegalArgumentException("expected " + expected + " at " + pos);
+        }
+    }
+
+    /**
+     * Skip whitespace and consume the next character, 0 at the end
+     */
+    private char next() {
+        char c = peek();
+        if (c != 0) {
+            pos++;
+        }
+        return c;
+    }
+
+    private char peek() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos < json.length() ? json.charAt(pos) : 0;
+    }
+}
@@ -0,0 +1,812 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Customer;
+import de.domistiller.banker.model.Transfer;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory engine which serves all reads and funds checks from memory
+ * Customers, accounts and transfers are loaded from the database at startup. Accepted transfers are applied
+ * in memory and persisted asynchronously through Database.makeTransfers, in the order they were accepted.
+ * Customers and accounts are created in the database first, since their ids and constraints come from there.
+ * Nothing else may write to the database while the ledger runs, transfer ids are assigned by the ledger
+ */
+class Ledger implements Backend {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    // Wait before persisting journaled transfers the database rejected again
+    private final static long RETRY_MILLIS = 1000;
+
+    /**
+     * When a transfer is acknowledged to the caller
+     */
+    enum Ack {
+        // As soon as it has been applied in memory, it is lost if the process dies before it is persisted
+        MEMORY,
+        // Once it has been committed to the database
+        DURABLE,
+        // Once it has been written to the transfer journal, which is replayed into the database at startup
+        JOURNAL
+    }
+
+    private final Database db;
+    private final Ack ack;
+    private final int batchSize;
+    private final int pageSize;
+
+    // Guards all state below, balance reads are optimistic and usually take no lock at all
+    private final StampedLock lock = new StampedLock();
+
+    private final TreeMap<Integer, Customer> customers = new TreeMap<>();
+    // Account slots of every customer, ordered by account number
+    private final Map<Integer, int[]> customerAccounts = new HashMap<>();
+
+    // Account state, indexed by the slot from the account index
+    private final AccountIndex accounts;
+    private long[] initialBalances;
+    private long[] balances;
+    // Credits of transfers not yet persisted, they only count for funds checks once the database accepted them
+    private long[] unsettledCredits;
+    private int[] currencies;
+    // Indexes of each account's transfers, ordered by execution date and id
+    private int[][] history;
+    private int[] historySizes;
+
+    // Transfers by index in the order they were accepted, amounts in units and dates in epoch seconds
+    private int transferCount;
+    private int[] transferIds;
+    private long[] senders;
+    private long[] receivers;
+    private long[] amounts;
+    private int[] amountCurrencies;
+    private long[] executionDates;
+    private String[] references;
+    private int nextTransferId = 1;
+
+    // Transfers applied in memory but not yet persisted
+    private final BlockingQueue<Pending> pending;
+    private final Thread writer;
+    private boolean closed;
+    // Only with journal acknowledgement
+    private TransferJournal journal;
+
+    private long persisted;
+    private long reverted;
+
+    /**
+     * Load all customers, accounts and transfers and start persisting accepted transfers
+     * @throws IllegalStateException If the data could not be loaded
+     */
+    Ledger(Database db, Properties settings) {
+        this.db = db;
+        ack = Ack.valueOf(settings.getProperty("ledger.ack", "durable").toUpperCase());
+        batchSize = Integer.parseInt(settings.getProperty("batchsize", "1000"));
+        pageSize = Integer.parseInt(settings.getProperty("pagesize", "500"));
+        pending = new LinkedBlockingQueue<>(Integer.parseInt(settings.getProperty("ledger.queuesize", "100000")));
+
+        accounts = new AccountIndex(1024);
+        initialBalances = new long[1024];
+        balances = new long[1024];
+        unsettledCredits = new long[1024];
+        currencies = new int[1024];
+        history = new int[1024][];
+        historySizes = new int[1024];
+        growTransfers(1024);
+
+        if (ack == Ack.JOURNAL) {
+            openJournal(settings);
+        }
+
+        long start = System.nanoTime();
+        boolean loaded = db.forEachCustomer(c -> customers.put(c.getId(), c))
+                && db.forEachAccount(this::addAccount)
+                && db.forEachTransfer(this::loadTransfer);
+        if (!loaded) {
+            throw new IllegalStateException("ledger could not be loaded");
+        }
+        for (int slot = 0; slot < accounts.size(); slot++) {
+            sortHistory(slot);
+        }
+        log.info(String.format("loaded %d customers, %d accounts and %d transfers into the ledger in %d ms",
+                customers.size(), accounts.size(), transferCount,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+
+        writer = new Thread(this::persist, "banker-ledger-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    /**
+     * Open the journal and persist the transfers from it which did not reach the database before the last shutdown
+     * Transfers are persisted in the order they were accepted, so those with a higher id than any persisted one are missing
+     * If any of them cannot be persisted, startup fails and the journal is kept as it is for the next attempt
+     */
+    private void openJournal(Properties settings) {
+        // A memory mapped buffer holds at most Integer.MAX_VALUE bytes, so the size must stay below 2048 MB
+        String size = settings.getProperty("journal.size", "64");
+        long megabytes;
+        try {
+            megabytes = Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("journal.size must be a number of megabytes, not " + size);
+        }
+        if (megabytes <= 0 || megabytes * 1024 * 1024 > Integer.MAX_VALUE) {
+            throw new IllegalStateException("journal.size must be between 1 and 2047 megabytes, not " + size);
+        }
+        long capacity = megabytes * 1024 * 1024;
+
+        try {
+            journal = new TransferJournal(
+                    Paths.get(settings.getProperty("journal.path", "banker.journal")),
+                    (int) capacity,
+                    Long.parseLong(settings.getProperty("journal.groupcommit", "2")),
+                    Long.parseLong(settings.getProperty("journal.fsyncinterval", "0")));
+        } catch (IOException e) {
+            throw new IllegalStateException("transfer journal could not be opened", e);
+        }
+
+        int lastId = db.getLastTransferId();
+        if (lastId < 0) {
+            journal.close();
+            throw new IllegalStateException("transfer journal could not be replayed");
+        }
+
+        List<Transfer> missing = new ArrayList<>();
+        int count = journal.replay(t -> {
+            if (t.getId() > lastId) {
+                missing.add(t);
+            }
+        });
+        if (!missing.isEmpty()) {
+            BatchResult result = db.makeTransfersInOrder(missing);
+            if (result.getSucceeded() < missing.size()) {
+                journal.close();
+                throw new IllegalStateException("journaled transfer " + missing.get(result.getSucceeded()).getId()
+                        + " could not be persisted, " + (missing.size() - result.getSucceeded())
+                        + " transfers are kept in the journal");
+            }
+        }
+        log.info("replayed " + missing.size() + " of " + count + " journaled transfers");
+        journal.release(journal.getWritten());
+    }
+
+
+    // CUSTOMERS
+    @Override
+    public Customer getCustomer(int id) {
+        long stamp = lock.readLock();
+        try {
+            return customers.get(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean forEachCustomer(Consumer<Customer> consumer) {
+        List<Customer> list;
+        long stamp = lock.readLock();
+        try {
+            list = new ArrayList<>(customers.values());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        list.forEach(consumer);
+        return true;
+    }
+
+    @Override
+    public boolean createCustomer(Customer c) {
+        if (!db.createCustomer(c)) {
+            return false;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            customers.put(c.getId(), new Customer(c.getId(), c.getName(), c.getAddress(), c.getEmail(), c.getPhone(), 0));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+
+    // ACCOUNTS
+    @Override
+    public Account getAccount(Account.Reference ref) {
+        long stamp = lock.readLock();
+        try {
+            int slot = accounts.find(ref);
+            if (slot < 0) {
+                return null;
+            }
+            return new Account(ref.getCustomerId(), ref.getAccountNumber(),
+                    Amount.ofUnits(initialBalances[slot], currencies[slot]));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<Account> getAccountsWithBalances(int customerId) {
+        List<Account> list = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            int[] slots = customerAccounts.get(customerId);
+            if (slots != null) {
+                for (int slot : slots) {
+                    long key = accounts.key(slot);
+                    list.add(new Account(
+                            Account.Reference.customerId(key),
+                            Account.Reference.accountNumber(key),
+                            Amount.ofUnits(initialBalances[slot], currencies[slot]),
+                            Amount.ofUnits(balances[slot], currencies[slot])));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return list;
+    }
+
+    @Override
+    public boolean createAccount(Account a) {
+        if (getAccount(a.getRef()) != null || !db.createAccount(a)) {
+            return false;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            addAccount(a);
+            Customer c = customers.get(a.getRef().getCustomerId());
+            customers.put(c.getId(), new Customer(c.getId(), c.getName(), c.getAddress(), c.getEmail(), c.getPhone(),
+                    c.getNumAcounts() + 1));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+    /**
+     * Reads without locking, unless a transfer is applied at the same time
+     */
+    @Override
+    public Amount getAccountBalance(Account.Reference ref) {
+        long key = ref.key();
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int slot = accounts.find(key);
+                long units = slot < 0 ? 0 : balances[slot];
+                int currency = slot < 0 ? 0 : currencies[slot];
+                if (lock.validate(stamp)) {
+                    return slot < 0 ? null : Amount.ofUnits(units, currency);
+                }
+            } catch (ArrayIndexOutOfBoundsException ignore) {
+                // Arrays were replaced while reading, read again under the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            int slot = accounts.find(key);
+            return slot < 0 ? null : Amount.ofUnits(balances[slot], currencies[slot]);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Only called while holding the write lock or while loading
+    private void addAccount(Account a) {
+        int slot = accounts.add(a.getRef().key());
+        if (slot == balances.length) {
+            int capacity = balances.length * 2;
+            initialBalances = Arrays.copyOf(initialBalances, capacity);
+            balances = Arrays.copyOf(balances, capacity);
+            unsettledCredits = Arrays.copyOf(unsettledCredits, capacity);
+            currencies = Arrays.copyOf(currencies, capacity);
+            history = Arrays.copyOf(history, capacity);
+            historySizes = Arrays.copyOf(historySizes, capacity);
+        }
+
+        initialBalances[slot] = a.getInitialBalance().getUnits();
+        // Accounts created at runtime have no current balance yet
+        Amount balance = a.getCurrentBalance() == null ? a.getInitialBalance() : a.getCurrentBalance();
+        balances[slot] = balance.getUnits();
+        currencies[slot] = a.getInitialBalance().getCurrencyId();
+        history[slot] = new int[4];
+
+        int customerId = a.getRef().getCustomerId();
+        int[] slots = customerAccounts.get(customerId);
+        int[] updated = slots == null ? new int[1] : Arrays.copyOf(slots, slots.length + 1);
+        int i = updated.length - 1;
+        while (i > 0 && Account.Reference.accountNumber(accounts.key(updated[i - 1])) > a.getRef().getAccountNumber()) {
+            updated[i] = updated[i - 1];
+            i--;
+        }
+        updated[i] = slot;
+        customerAccounts.put(customerId, updated);
+    }
+
+
+    // TRANSFERS
+    /**
+     * Transfers are copied page by page under the read lock, the consumer is called without holding it
+     * Each page continues after the date and id of the last transfer of the previous one,
+     * so transfers made or reverted in between do not shift the pages
+     */
+    @Override
+    public boolean forEachTransfer(Account.Reference ref, LocalDateTime from, LocalDateTime to,
+                                   Consumer<Transfer> consumer) {
+        long end = to == null ? Long.MAX_VALUE : toSeconds(to);
+        long lastDate = from == null ? Long.MIN_VALUE : toSeconds(from);
+        // Transfer ids start at 1, so this includes all transfers at the start date
+        int lastId = 0;
+        List<Transfer> page = new ArrayList<>(pageSize);
+
+        while (true) {
+            long stamp = lock.readLock();
+            try {
+                int slot = accounts.find(ref);
+                if (slot >= 0) {
+                    int[] indexes = history[slot];
+                    int size = historySizes[slot];
+                    for (int i = firstAfter(indexes, size, lastDate, lastId); i < size && page.size() < pageSize; i++) {
+                        int index = indexes[i];
+                        if (executionDates[index] >= end) {
+                            break;
+                        }
+                        page.add(toTransfer(index));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            page.forEach(consumer);
+            if (page.size() < pageSize) {
+                return true;
+            }
+            Transfer last = page.get(page.size() - 1);
+            lastDate = toSeconds(last.getExecutionDate());
+            lastId = last.getId();
+            page.clear();
+        }
+    }
+
+    /**
+     * @return Position of the first transfer in the history ordered after the date and id
+     */
+    private int firstAfter(int[] indexes, int size, long date, int id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int index = indexes[middle];
+            int result = Long.compare(executionDates[index], date);
+            if (result < 0 || result == 0 && transferIds[index] <= id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Check funds and apply the transfer in memory, then queue it for persisting
+     * All transfers are applied one at a time, which takes well below a microsecond each
+     * Funds are checked without credits which are not persisted yet, so reverting a rejected transfer
+     * never takes away money a later transfer was checked against
+     * @return With durable acknowledgement, SUCCESS only once the transfer has been committed to the database
+     */
+    @Override
+    public TransferResult makeCheckedTransfer(Transfer t) {
+        ExchangeRates.Snapshot snapshot = db.getRates();
+        // Stored with whole seconds, so memory and database agree on the order of transfers
+        t.setExecutionDate(t.getExecutionDate().truncatedTo(ChronoUnit.SECONDS));
+
+        long units = t.getAmount().getUnits();
+        int currency = t.getAmount().getCurrencyId();
+        Pending p;
+        long journaled = 0;
+
+        long stamp = lock.writeLock();
+        try {
+            if (closed) {
+                return TransferResult.FAILED;
+            }
+
+            int sender = accounts.find(t.getSender());
+            int receiver = accounts.find(t.getReceiver());
+            if (sender < 0 || receiver < 0) {
+                return TransferResult.FAILED;
+            }
+
+            long fundsRate = snapshot.rate(currencies[sender], currency);
+            long senderRate = snapshot.rate(currency, currencies[sender]);
+            long receiverRate = snapshot.rate(currency, currencies[receiver]);
+            if (fundsRate == ExchangeRates.Snapshot.NO_RATE || senderRate == ExchangeRates.Snapshot.NO_RATE
+                    || receiverRate == ExchangeRates.Snapshot.NO_RATE) {
+                log.severe("no exchange rates for transfer from " + t.getSender() + " to " + t.getReceiver()
+                        + " in " + t.getAmount().getCurrency());
+                return TransferResult.FAILED;
+            }
+
+            // Same check as Database.makeCheckedTransfer
+            long available = Amount.subtract(balances[sender], unsettledCredits[sender]);
+            if (Amount.convert(available, fundsRate) < units) {
+                return TransferResult.INSUFFICIENT_FUNDS;
+            }
+            if (pending.remainingCapacity() == 0) {
+                log.warning("transfer rejected, " + pending.size() + " transfers are waiting to be persisted");
+                return TransferResult.FAILED;
+            }
+
+            long debit = Amount.convert(units, senderRate);
+            long credit = Amount.convert(units, receiverRate);
+            long senderBalance = Amount.subtract(balances[sender], debit);
+            long receiverBalance = Amount.add(sender == receiver ? senderBalance : balances[receiver], credit);
+
+            t.setId(nextTransferId);
+            if (journal != null) {
+                journaled = journal.append(t);
+                if (journaled < 0) {
+                    log.warning("transfer rejected, the journal is full");
+                    return TransferResult.FAILED;
+                }
+            }
+
+            balances[sender] = senderBalance;
+            balances[receiver] = receiverBalance;
+            unsettledCredits[receiver] = Amount.add(unsettledCredits[receiver], credit);
+            nextTransferId++;
+            int index = addTransfer(t, sender, receiver);
+            p = new Pending(t, index, sender, receiver, debit, credit, journaled);
+            pending.add(p);
+        } catch (ArithmeticException e) {
+            log.log(Level.SEVERE, "balance overflow in transfer from " + t.getSender() + " to " + t.getReceiver(), e);
+            return TransferResult.FAILED;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        if (ack == Ack.DURABLE) {
+            return p.result.join();
+        }
+        if (ack == Ack.JOURNAL) {
+            journal.awaitSync(journaled);
+        }
+        return TransferResult.SUCCESS;
+    }
+
+    @Override
+    public Amount convertCurrency(Amount from, String toCurrency) {
+        return db.convertCurrency(from, toCurrency);
+    }
+
+    @Override
+    public List<String> getCurrencies() {
+        return db.getCurrencies();
+    }
+
+    // Only called while loading
+    private void loadTransfer(Transfer t) {
+        int sender = accounts.find(t.getSender());
+        int receiver = accounts.find(t.getReceiver());
+        addTransfer(t, sender, receiver);
+        nextTransferId = Math.max(nextTransferId, t.getId() + 1);
+    }
+
+    // Only called while holding the write lock or while loading
+    private int addTransfer(Transfer t, int sender, int receiver) {
+        if (transferCount == transferIds.length) {
+            growTransfers(transferIds.length * 2);
+        }
+
+        int index = transferCount++;
+        transferIds[index] = t.getId();
+        senders[index] = t.getSender().key();
+        receivers[index] = t.getReceiver().key();
+        amounts[index] = t.getAmount().getUnits();
+        amountCurrencies[index] = t.getAmount().getCurrencyId();
+        executionDates[index] = toSeconds(t.getExecutionDate());
+        references[index] = t.getReference();
+
+        addToHistory(sender, index);
+        // Transfers to the same account are listed once
+        if (receiver != sender) {
+            addToHistory(receiver, index);
+        }
+        return index;
+    }
+
+    private void growTransfers(int capacity) {
+        transferIds = transferIds == null ? new int[capacity] : Arrays.copyOf(transferIds, capacity);
+        senders = senders == null ? new long[capacity] : Arrays.copyOf(senders, capacity);
+        receivers = receivers == null ? new long[capacity] : Arrays.copyOf(receivers, capacity);
+        amounts = amounts == null ? new long[capacity] : Arrays.copyOf(amounts, capacity);
+        amountCurrencies = amountCurrencies == null ? new int[capacity] : Arrays.copyOf(amountCurrencies, capacity);
+        executionDates = executionDates == null ? new long[capacity] : Arrays.copyOf(executionDates, capacity);
+        references = references == null ? new String[capacity] : Arrays.copyOf(references, capacity);
+    }
+
+    /**
+     * Append to the account's history, new transfers are usually the latest so this rarely has to search
+     */
+    private void addToHistory(int slot, int index) {
+        int size = historySizes[slot];
+        if (size == history[slot].length) {
+            history[slot] = Arrays.copyOf(history[slot], size * 2);
+        }
+        int[] indexes = history[slot];
+
+        int position = size;
+        while (position > 0 && compareTransfers(indexes[position - 1], index) > 0) {
+            position--;
+        }
+        System.arraycopy(indexes, position, indexes, position + 1, size - position);
+        indexes[position] = index;
+        historySizes[slot] = size + 1;
+    }
+
+    private void removeFromHistory(int slot, int index) {
+        int[] indexes = history[slot];
+        for (int i = historySizes[slot] - 1; i >= 0; i--) {
+            if (indexes[i] == index) {
+                System.arraycopy(indexes, i + 1, indexes, i, historySizes[slot] - i - 1);
+                historySizes[slot]--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loaded transfers are in id order, which only differs from date order for backdated transfers
+     */
+    private void sortHistory(int slot) {
+        int[] indexes = history[slot];
+        int size = historySizes[slot];
+        for (int i = 1; i < size; i++) {
+            if (compareTransfers(indexes[i - 1], indexes[i]) > 0) {
+                Integer[] boxed = new Integer[size];
+                for (int j = 0; j < size; j++) {
+                    boxed[j] = indexes[j];
+                }
+                Arrays.sort(boxed, this::compareTransfers);
+                for (int j = 0; j < size; j++) {
+                    indexes[j] = boxed[j];
+                }
+                return;
+            }
+        }
+    }
+
+    private int compareTransfers(int a, int b) {
+        int result = Long.compare(executionDates[a], executionDates[b]);
+        return result != 0 ? result : Integer.compare(transferIds[a], transferIds[b]);
+    }
+
+    // Only called while holding a lock
+    private Transfer toTransfer(int index) {
+        Account.Reference sender = Account.Reference.fromKey(senders[index]);
+        Account.Reference receiver = Account.Reference.fromKey(receivers[index]);
+        return new Transfer(
+                transferIds[index],
+                sender,
+                customers.get(sender.getCustomerId()).getName(),
+                receiver,
+                customers.get(receiver.getCustomerId()).getName(),
+                Amount.ofUnits(amounts[index], amountCurrencies[index]),
+                LocalDateTime.ofEpochSecond(executionDates[index], 0, ZoneOffset.UTC),
+                references[index]);
+    }
+
+    private static long toSeconds(LocalDateTime date) {
+        // Only used for ordering and comparing, so the offset does not matter
+        return date.toEpochSecond(ZoneOffset.UTC);
+    }
+
+
+    // PERSISTENCE
+    /**
+     * Writer thread, persists queued transfers in batches until the ledger is closed and the queue is empty
+     */
+    private void persist() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        List<Transfer> transfers = new ArrayList<>(batchSize);
+
+        while (true) {
+            Pending first;
+            try {
+                first = pending.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (first == null) {
+                if (isClosed()) {
+                    return;
+                }
+                continue;
+            }
+
+            batch.add(first);
+            pending.drainTo(batch, batchSize - 1);
+            for (Pending p : batch) {
+                transfers.add(p.transfer);
+            }
+
+            if (journal == null) {
+                BatchResult result = db.makeTransfers(transfers);
+                settle(batch, result);
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).result.complete(result.isSuccessful(i) ? TransferResult.SUCCESS : TransferResult.FAILED);
+                }
+            } else if (!persistJournaled(batch, transfers)) {
+                return;
+            }
+
+            batch.clear();
+            transfers.clear();
+        }
+    }
+
+    /**
+     * Persist journaled transfers in order, retrying those the database rejects instead of reverting them,
+     * since their callers have been told they are durable
+     * The journal space of every persisted transfer is released, nothing else is
+     * @return False if the ledger was closed before all of them were persisted, they stay in the journal
+     *         and are persisted at the next start
+     */
+    private boolean persistJournaled(List<Pending> batch, List<Transfer> transfers) {
+        while (true) {
+            BatchResult result = db.makeTransfersInOrder(transfers);
+            int done = result.getSucceeded();
+            if (done > 0) {
+                List<Pending> persistedPart = batch.subList(0, done);
+                settle(persistedPart, result);
+                for (Pending p : persistedPart) {
+                    p.result.complete(TransferResult.SUCCESS);
+                }
+                journal.release(batch.get(done - 1).journaled);
+                persistedPart.clear();
+                transfers.subList(0, done).clear();
+            }
+            if (batch.isEmpty()) {
+                return true;
+            }
+
+            if (isClosed()) {
+                log.severe(batch.size() + " journaled transfers could not be persisted before closing, "
+                        + "they are persisted at the next start");
+                return false;
+            }
+            log.severe("journaled transfer " + batch.get(0).transfer.getId()
+                    + " could not be persisted, retrying in " + RETRY_MILLIS + " ms");
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Make the credits of persisted transfers available and undo the transfers the database rejected,
+     * so memory stays consistent with the database
+     * With memory acknowledgement the callers of rejected transfers have already been told they succeeded
+     */
+    private void settle(List<Pending> batch, BatchResult result) {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Pending p = batch.get(i);
+                unsettledCredits[p.receiver] = Amount.subtract(unsettledCredits[p.receiver], p.credit);
+                if (result.isSuccessful(i)) {
+                    persisted++;
+                    continue;
+                }
+
+                balances[p.sender] = Amount.add(balances[p.sender], p.debit);
+                balances[p.receiver] = Amount.subtract(balances[p.receiver], p.credit);
+                removeFromHistory(p.sender, p.index);
+                if (p.receiver != p.sender) {
+                    removeFromHistory(p.receiver, p.index);
+                }
+                reverted++;
+                log.severe("transfer " + p.transfer.getId() + " could not be persisted and was reverted");
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean isClosed() {
+        long stamp = lock.readLock();
+        try {
+            return closed;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Stop accepting transfers, wait until all accepted ones are persisted and close the database
+     */
+    @Override
+    public void close() {
+        long stamp = lock.writeLock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("ledger persisted " + persisted + " transfers, reverted " + reverted);
+        if (journal != null) {
+            // Only persisted transfers have been released, the others are persisted at the next start
+            journal.close();
+        }
+        db.close();
+    }
+
+
+    /**
+     * A transfer applied in memory, with everything needed to complete or revert it
+     */
+    private static class Pending {
+        private final Transfer transfer;
+        private final int index;
+        private final int sender;
+        private final int receiver;
+        private final long debit;
+        private final long credit;
+        // Journal position after the transfer, 0 without a journal
+        private final long journaled;
+        private final CompletableFuture<TransferResult> result = new CompletableFuture<>();
+
+        private Pending(Transfer transfer, int index, int sender, int receiver, long debit, long credit,
+                        long journaled) {
+            this.transfer = transfer;
+            this.index = index;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.debit = debit;
+            this.credit = credit;
+            this.journaled = journaled;
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package de.domistiller.banker;
 
 import java.io.*;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,6 +50,62 @@ public class Main {
 
         log.info("settings loaded");
 
-        new Banker(settings).start();
+        Banker banker = new Banker(settings);
+        if (args.length == 0) {
+            banker.start();
+        } else if (args[0].equals("--server")) {
+            banker.serve();
+        } else if (args[0].equals("--batch")) {
+            if (args.length < 2) {
+                System.out.println("Usage: --batch FILE...");
+                System.exit(-1);
+            }
+            banker.runBatch(Arrays.asList(args).subList(1, args.length));
+        } else if (args[0].equals("--import")) {
+            if (args.length < 2) {
+                System.out.println("Usage: --import FILE...");
+                System.exit(-1);
+            }
+            banker.importCustomers(Arrays.asList(args).subList(1, args.length));
+        } else if (args[0].equals("--statements")) {
+            // The previous month by default, e.g. when run on the first day of a month
+            YearMonth month = YearMonth.now().minusMonths(1);
+            if (args.length > 1) {
+                try {
+                    month = YearMonth.parse(args[1]);
+                } catch (DateTimeParseException e) {
+                    System.out.println("Usage: --statements [YYYY-MM]");
+                    System.exit(-1);
+                }
+            }
+            banker.writeStatements(month);
+        } else if (args[0].equals("--end-of-day")) {
+            // The previous day by default, e.g. when run after midnight
+            LocalDate date = LocalDate.now().minusDays(1);
+            if (args.length > 1) {
+                try {
+                    date = LocalDate.parse(args[1]);
+                } catch (DateTimeParseException e) {
+                    System.out.println("Usage: --end-of-day [YYYY-MM-DD]");
+                    System.exit(-1);
+                }
+            }
+            banker.runEndOfDay(date);
+        } else if (args[0].equals("--reconcile")) {
+            banker.reconcile();
+        } else if (args[0].equals("--verify-balances")) {
+            banker.verifyBalances(false);
+        } else if (args[0].equals("--rebuild-balances")) {
+            banker.verifyBalances(true);
+        } else if (args[0].equals("--migrate")) {
+            banker.migrate();
+        } else if (args[0].equals("--checkpoint")) {
+            banker.checkpointBalances();
+        } else if (args[0].equals("--check-plans")) {
+            banker.checkPlans();
+        } else {
+            System.out.println("Unknown argument " + args[0]);
+            System.exit(-1);
+        }
     }
 }
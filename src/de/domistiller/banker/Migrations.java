@@ -0,0 +1,140 @@
+package de.domistiller.banker;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Versioned schema changes for databases created with an older sql/create.sql
+ * Applied migrations are recorded in the schema_version table, a fresh sql/create.sql records all of them
+ * New migrations are appended with the next version, existing ones must never change
+ */
+class Migrations {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    // See sql/migrations.sql for SQL-only code
+    private final static List<Migration> MIGRATIONS = new ArrayList<>();
+
+    static {
+        MIGRATIONS.add(new Migration(1, "Maintained account balances",
+                "ALTER TABLE accounts ADD current_balance decimal(19, 7) NOT NULL DEFAULT 0 AFTER initial_balance",
+                "UPDATE accounts a\n" +
+                    "SET current_balance = initial_balance\n" +
+                    "   + (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                    "      FROM transfers t\n" +
+                    "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                    "      WHERE t.receiver_id = a.customer_id\n" +
+                    "      AND t.receiver_account = a.account_no)\n" +
+                    "   - (SELECT IFNULL(SUM(t.amount * r.rate), 0)\n" +
+                    "      FROM transfers t\n" +
+                    "      JOIN exchangerates r ON r.from_currency = t.currency AND r.to_currency = a.currency\n" +
+                    "      WHERE t.sender_id = a.customer_id\n" +
+                    "      AND t.sender_account = a.account_no)"));
+        MIGRATIONS.add(new Migration(2, "Indexes for transfer history by account and date",
+                "CREATE INDEX transfers_sender_date ON transfers (sender_id, sender_account, execution_date)",
+                "CREATE INDEX transfers_receiver_date ON transfers (receiver_id, receiver_account, execution_date)"));
+        MIGRATIONS.add(new Migration(3, "Balance checkpoints",
+                "CREATE TABLE balance_checkpoints\n" +
+                    "(\n" +
+                    "   customer_id      int,\n" +
+                    "   account_no       int,\n" +
+                    "   as_of            datetime NOT NULL,\n" +
+                    "   balance          decimal(19, 7) NOT NULL,\n" +
+                    "   last_transfer_id int NOT NULL,\n" +
+                    "   PRIMARY KEY (customer_id, account_no, as_of),\n" +
+                    "   INDEX balance_checkpoints_as_of (as_of),\n" +
+                    "   FOREIGN KEY (customer_id, account_no)\n" +
+                    "      REFERENCES accounts (customer_id, account_no)\n" +
+                    ")"));
+        MIGRATIONS.add(new Migration(4, "Daily balances and interest",
+                "CREATE TABLE daily_balances\n" +
+                    "(\n" +
+                    "   customer_id      int,\n" +
+                    "   account_no       int,\n" +
+                    "   business_date    date NOT NULL,\n" +
+                    "   balance          decimal(19, 7) NOT NULL,\n" +
+                    "   interest         decimal(19, 7) NOT NULL,\n" +
+                    "   last_transfer_id int NOT NULL,\n" +
+                    "   PRIMARY KEY (customer_id, account_no, business_date),\n" +
+                    "   FOREIGN KEY (customer_id, account_no)\n" +
+                    "      REFERENCES accounts (customer_id, account_no)\n" +
+                    ")"));
+    }
+
+    private Migrations() {}
+
+    /**
+     * Apply all migrations newer than the current schema version, in order
+     * MySQL commits every schema change immediately, so a failed migration may have to be completed by hand
+     * @return Number of applied migrations
+     */
+    static int apply(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate(
+                    "CREATE TABLE IF NOT EXISTS schema_version\n" +
+                        "(\n" +
+                        "   version     int,\n" +
+                        "   description varchar(200) NOT NULL,\n" +
+                        "   applied_at  datetime NOT NULL,\n" +
+                        "   PRIMARY KEY (version)\n" +
+                        ")");
+        }
+
+        int current = getVersion(conn);
+        int applied = 0;
+
+        for (Migration m : MIGRATIONS) {
+            if (m.version <= current) {
+                continue;
+            }
+
+            log.info("applying migration " + m.version + ": " + m.description);
+            try (Statement statement = conn.createStatement()) {
+                for (String sql : m.statements) {
+                    statement.executeUpdate(sql);
+                }
+            }
+            try (PreparedStatement record = conn.prepareStatement(
+                    "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, NOW())")) {
+                record.setInt(1, m.version);
+                record.setString(2, m.description);
+                record.executeUpdate();
+            }
+            applied++;
+        }
+
+        log.info("schema is at version " + getLatestVersion() + ", applied " + applied + " migrations");
+        return applied;
+    }
+
+    static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    private static int getVersion(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT IFNULL(MAX(version), 0) FROM schema_version")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final String[] statements;
+
+        private Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+}
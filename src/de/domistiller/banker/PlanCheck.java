@@ -0,0 +1,107 @@
+package de.domistiller.banker;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks the query plans of the statements in Database for full table scans
+ * Should run against a database seeded with realistic amounts of data,
+ * since MySQL prefers scanning tables that only have a handful of rows
+ */
+class PlanCheck {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final Database db;
+    private final List<String> regressions = new ArrayList<>();
+
+    PlanCheck(Database db) {
+        this.db = db;
+    }
+
+    /**
+     * Explain every statement and report all unexpected full table scans
+     * Statements added to Database must be added here as well, inserts are left out since they read nothing
+     * @return Whether no statement scans a table it is not expected to scan
+     */
+    boolean run() {
+        check("getCustomer", Database.GET_CUSTOMER);
+        // Listing all customers reads all of them
+        check("getCustomers", Database.GET_CUSTOMERS, "customers");
+        check("getCustomerPage", Database.GET_CUSTOMER_PAGE);
+
+        check("getAccount", Database.GET_ACCOUNT);
+        check("getAccountPage", Database.GET_ACCOUNT_PAGE);
+        check("getAccountsWithBalances", Database.GET_ACCOUNTS_WITH_BALANCES);
+        check("getAccountsWithBalancesForCustomers",
+                String.format(Database.GET_ACCOUNTS_WITH_BALANCES_FOR_CUSTOMERS, "?, ?"));
+        check("getAccountBalance", Database.GET_ACCOUNT_BALANCE);
+        check("updateAccountBalance", Database.UPDATE_ACCOUNT_BALANCE);
+        // Verifying and rebuilding visit every account
+        check("verifyAccountBalances", Database.VERIFY_ACCOUNT_BALANCES, "a");
+        check("rebuildAccountBalances", Database.REBUILD_ACCOUNT_BALANCES, "a");
+        check("getBalanceCheckpoint", Database.GET_BALANCE_CHECKPOINT);
+        check("getAccountBalanceAsOf", Database.GET_ACCOUNT_BALANCE_AS_OF);
+        check("getLatestCheckpoint", Database.GET_LATEST_CHECKPOINT);
+        check("getLastTransferBefore", Database.GET_LAST_TRANSFER_BEFORE);
+        // A round of checkpoints writes one for every account
+        check("createBalanceCheckpoints", Database.CREATE_BALANCE_CHECKPOINTS, "a");
+
+        check("getTransfers", Database.GET_TRANSFERS);
+        check("getTransferPage", Database.GET_TRANSFER_PAGE);
+        check("getAllTransfersPage", Database.GET_ALL_TRANSFERS_PAGE);
+        check("getLastTransferId", Database.GET_LAST_TRANSFER_ID);
+
+        // Both tables only hold a few rows per currency
+        check("getCurrencies", Database.GET_CURRENCIES, "currencies");
+        check("getExchangeRates", Database.GET_EXCHANGE_RATES, "exchangerates");
+
+        if (regressions.isEmpty()) {
+            System.out.println("No unexpected full table scans");
+        } else {
+            System.out.println(regressions.size() + " unexpected full table scans:");
+            for (String regression : regressions) {
+                System.out.println("  " + regression);
+            }
+        }
+        return regressions.isEmpty();
+    }
+
+    /**
+     * @param scannedTables Tables (or their aliases) which the statement is expected to read completely
+     */
+    private void check(String name, String sql, String... scannedTables) {
+        List<String> allowed = Arrays.asList(scannedTables);
+
+        try (PooledConnection conn = db.acquireConnection();
+             PreparedStatement explain = conn.getConnection().prepareStatement("EXPLAIN " + sql)) {
+            // The values do not matter, but they must not make the condition impossible
+            int parameters = explain.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= parameters; i++) {
+                explain.setInt(i, 1);
+            }
+
+            try (ResultSet rs = explain.executeQuery()) {
+                while (rs.next()) {
+                    String table = rs.getString("table");
+                    String type = rs.getString("type");
+
+                    // Derived tables and unions are built from the rows of other tables, which are checked themselves
+                    boolean derived = table == null || table.startsWith("<");
+                    if ("ALL".equals(type) && !derived && !allowed.contains(table)) {
+                        regressions.add(name + " scans table " + table + " (" + rs.getString("Extra") + ")");
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error explaining " + name, e);
+            regressions.add(name + " could not be explained: " + e.getMessage());
+        }
+    }
+}
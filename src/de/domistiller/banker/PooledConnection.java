@@ -0,0 +1,123 @@
+package de.domistiller.banker;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Database connection borrowed from a {@link ConnectionPool}
+ * Closing it returns it to the pool, prepared statements stay cached for the next borrower
+ */
+class PooledConnection implements AutoCloseable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    // Seconds to wait for a validation round trip
+    private final static int VALIDATION_TIMEOUT = 2;
+
+    private final ConnectionPool pool;
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Map<String, PreparedStatement> keyStatements = new HashMap<>();
+
+    private long lastUsed;
+
+    PooledConnection(ConnectionPool pool, Connection conn) {
+        this.pool = pool;
+        this.conn = conn;
+        touch();
+    }
+
+    Connection getConnection() {
+        return conn;
+    }
+
+    /**
+     * Get the prepared statement for the query, preparing it on first use on this connection
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = conn.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Like prepare, for inserts whose generated keys are read with getGeneratedKeys, also after executeBatch
+     */
+    PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+        PreparedStatement statement = keyStatements.get(sql);
+        if (statement == null) {
+            statement = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            keyStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    boolean isValid() {
+        try {
+            return conn.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Undo any transaction left open by the borrower
+     * @return Whether the connection can be reused
+     */
+    boolean reset() {
+        try {
+            if (conn.isClosed()) {
+                return false;
+            }
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            log.log(Level.WARNING, "error resetting database connection", e);
+            return false;
+        }
+    }
+
+    /**
+     * Close the prepared statements and the underlying connection
+     */
+    void closeConnection() {
+        try {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            for (PreparedStatement statement : keyStatements.values()) {
+                statement.close();
+            }
+            keyStatements.clear();
+            conn.close();
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "error when closing prepared statements and database connection", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+}
@@ -0,0 +1,152 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Checks the balances maintained by the database against an independent recomputation from all transfers
+ *
+ * Balances are recomputed by a BalanceScan, which reads the transfers in parallel id ranges and reports
+ * transfers that cannot be counted
+ * Per currency, the maintained balances of all accounts must add up to their initial balances plus the net
+ * converted amount of transfers between accounts in different currencies
+ * Transfers within one currency are not counted, so this does not rely on the per account sums: a transfer
+ * the database only applied to one of its accounts changes the maintained total and shows up as a mismatch
+ * For the first mismatched accounts, their transfers are read again to find the ones whose converted amount
+ * equals the difference, e.g. a transfer whose balance update was lost or applied twice
+ * Transfers made while the check runs show up as mismatches, those accounts are marked for a recheck
+ */
+class Reconciliation {
+
+    private final Database db;
+    private final Properties settings;
+    private final int maxDetails;
+
+    Reconciliation(Database db, Properties settings) {
+        this.db = db;
+        this.settings = settings;
+        maxDetails = Integer.parseInt(settings.getProperty("reconcile.details", "100"));
+    }
+
+    /**
+     * @return Whether all balances and totals match and all transfers could be counted
+     */
+    boolean run() {
+        long start = System.nanoTime();
+        BalanceScan scan = new BalanceScan(db, settings);
+        boolean counted = scan.run(null);
+        double scanSeconds = (System.nanoTime() - start) / 1e9;
+
+        int currencyCount = Currencies.count();
+        long[] initialTotals = new long[currencyCount];
+        long[] servedTotals = new long[currencyCount];
+        List<Integer> mismatches = new ArrayList<>();
+        long mismatchCount = 0;
+
+        for (int slot = 0; slot < scan.size(); slot++) {
+            int currency = scan.currency(slot);
+            long served = scan.servedBalance(slot);
+            long recomputed = scan.balance(slot);
+            initialTotals[currency] = Amount.add(initialTotals[currency], scan.initialBalance(slot));
+            servedTotals[currency] = Amount.add(servedTotals[currency], served);
+
+            if (served != recomputed) {
+                mismatchCount++;
+                if (mismatches.size() < maxDetails) {
+                    mismatches.add(slot);
+                }
+            }
+        }
+
+        System.out.printf("Recomputed %d accounts from %d transfers up to id %d in %.1f s (%.0f transfers/s)\n",
+                scan.size(), scan.getTransfers(), scan.getLastTransferId(),
+                scanSeconds, scan.getTransfers() / Math.max(scanSeconds, 1e-9));
+
+        System.out.println();
+        System.out.println("CURRENCY   INITIAL                CROSS-CURRENCY NET     EXPECTED               MAINTAINED");
+        boolean totalsMatch = true;
+        for (int c = 0; c < currencyCount; c++) {
+            long net = scan.crossCurrencyNet(c);
+            if (initialTotals[c] == 0 && servedTotals[c] == 0 && net == 0) {
+                continue;
+            }
+            long expected = Amount.add(initialTotals[c], net);
+            boolean match = servedTotals[c] == expected;
+            totalsMatch &= match;
+            System.out.printf("%-8s   %-20s   %-20s   %-20s   %-20s %s\n",
+                    Currencies.code(c),
+                    Amount.ofUnits(initialTotals[c], c).toBigDecimal().toPlainString(),
+                    Amount.ofUnits(net, c).toBigDecimal().toPlainString(),
+                    Amount.ofUnits(expected, c).toBigDecimal().toPlainString(),
+                    Amount.ofUnits(servedTotals[c], c).toBigDecimal().toPlainString(),
+                    match ? "" : "MISMATCH");
+        }
+
+        if (scan.getProblemCount() > 0) {
+            System.out.println();
+            System.out.println(scan.getProblemCount() + " transfers could not be counted:");
+            for (String problem : scan.getProblems()) {
+                System.out.println("  " + problem);
+            }
+        }
+
+        System.out.println();
+        if (mismatchCount == 0) {
+            System.out.println("All maintained balances match the recomputation");
+        } else {
+            System.out.println(mismatchCount + " maintained balances do not match the recomputation"
+                    + (mismatchCount > mismatches.size() ? ", showing the first " + mismatches.size() : "") + ":");
+            for (int slot : mismatches) {
+                System.out.println("  " + describe(scan, slot));
+            }
+        }
+
+        return counted && totalsMatch && mismatchCount == 0;
+    }
+
+    /**
+     * Describe a mismatched account together with the transfers that would explain the difference
+     */
+    private String describe(BalanceScan scan, int slot) {
+        Account.Reference ref = Account.Reference.fromKey(scan.key(slot));
+        int currency = scan.currency(slot);
+        long difference = Amount.subtract(scan.servedBalance(slot), scan.balance(slot));
+        ExchangeRates.Snapshot rates = db.getRates();
+
+        List<Integer> candidates = new ArrayList<>();
+        boolean[] changed = {false};
+        int lastTransferId = scan.getLastTransferId();
+        boolean fetched = db.forEachTransfer(ref, null, null, t -> {
+            if (t.getId() > lastTransferId) {
+                changed[0] = true;
+                return;
+            }
+            long rate = rates.rate(t.getAmount().getCurrencyId(), currency);
+            if (rate != ExchangeRates.Snapshot.NO_RATE
+                    && Amount.convert(t.getAmount().getUnits(), rate) == Math.abs(difference)) {
+                candidates.add(t.getId());
+            }
+        });
+
+        StringBuilder s = new StringBuilder()
+                .append(ref)
+                .append(": maintained ").append(Amount.ofUnits(scan.servedBalance(slot), currency))
+                .append(", recomputed ").append(Amount.ofUnits(scan.balance(slot), currency))
+                .append(", difference ").append(Amount.ofUnits(difference, currency));
+        if (!fetched) {
+            s.append(", transfers could not be read");
+        } else if (changed[0]) {
+            s.append(", transfers were made during the check, run it again");
+        } else if (candidates.isEmpty()) {
+            s.append(", no single transfer explains the difference");
+        } else {
+            s.append(", transfers with this amount: ").append(candidates);
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,492 @@
+package de.domistiller.banker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Customer;
+import de.domistiller.banker.model.Transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP/JSON front-end offering the operations of the console to many clients at once
+ *
+ * GET  /customers                        all customers
+ * POST /customers                        {"name", "address", "email", "phone"}
+ * GET  /customers/{id}                   one customer
+ * GET  /customers/{id}/accounts          accounts of a customer with their balances
+ * POST /accounts                         {"customerId", "accountNumber", "initialBalance", "currency"}
+ * GET  /accounts/{ref}                   one account with its balance, ref is customer id-account number
+ * GET  /accounts/{ref}/statement         transfers of an account, optionally ?from=...&to=... (ISO date-times)
+ * POST /transfers                        {"sender", "receiver", "amount", "currency", "reference"}
+ * POST /rates/refresh                    reload the exchange rates
+ * GET  /metrics                          request latencies per endpoint
+ *
+ * Requests run on virtual threads where available. Lists are written to the client while they are read
+ * from the database, and end with "complete" telling whether everything could be read
+ */
+class Server implements Closeable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final Backend backend;
+    private final Database db;
+    private final List<String> currencies;
+
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final Map<String, LatencyHistogram> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * Start listening on server.host and server.port
+     */
+    Server(Backend backend, Database db, Properties settings) throws IOException {
+        this.backend = backend;
+        this.db = db;
+        currencies = backend.getCurrencies();
+
+        InetSocketAddress address = new InetSocketAddress(
+                settings.getProperty("server.host", "127.0.0.1"),
+                Integer.parseInt(settings.getProperty("server.port", "8080")));
+        executor = AsyncDatabase.createExecutor("banker-http",
+                Integer.parseInt(settings.getProperty("server.threads", "64")));
+
+        http = HttpServer.create(address, Integer.parseInt(settings.getProperty("server.backlog", "128")));
+        http.createContext("/", this::handle);
+        http.setExecutor(executor);
+        http.start();
+        log.info("server listening on " + address);
+    }
+
+    InetSocketAddress getAddress() {
+        return http.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) {
+        long start = System.nanoTime();
+        String method = exchange.getRequestMethod();
+        String[] path = segments(exchange.getRequestURI().getRawPath());
+        String route = route(method, path);
+
+        try {
+            switch (route) {
+                case "GET /customers":
+                    listCustomers(exchange);
+                    break;
+                case "POST /customers":
+                    createCustomer(exchange);
+                    break;
+                case "GET /customers/{id}":
+                    getCustomer(exchange, Integer.parseInt(path[1]));
+                    break;
+                case "GET /customers/{id}/accounts":
+                    listAccounts(exchange, Integer.parseInt(path[1]));
+                    break;
+                case "POST /accounts":
+                    createAccount(exchange);
+                    break;
+                case "GET /accounts/{ref}":
+                    getAccount(exchange, parseRef(path[1]));
+                    break;
+                case "GET /accounts/{ref}/statement":
+                    showStatement(exchange, parseRef(path[1]));
+                    break;
+                case "POST /transfers":
+                    makeTransfer(exchange);
+                    break;
+                case "POST /rates/refresh":
+                    refreshRates(exchange);
+                    break;
+                case "GET /metrics":
+                    showMetrics(exchange);
+                    break;
+                default:
+                    // Unknown paths share one metrics entry, so they cannot grow the metrics without bound
+                    route = "unmatched";
+                    sendError(exchange, 404, "no such endpoint " + method + " " + exchange.getRequestURI().getPath());
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (UncheckedIOException e) {
+            // Client went away while a list was being streamed
+            log.log(Level.INFO, "error writing response to " + route, e);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "error handling " + route, e);
+            sendError(exchange, 500, "internal error");
+        } finally {
+            exchange.close();
+            metrics.computeIfAbsent(route, r -> new LatencyHistogram()).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Route of a request with its variable segments replaced by placeholders, also used as metrics key
+     */
+    private static String route(String method, String[] path) {
+        StringBuilder route = new StringBuilder(method).append(' ');
+        if (path.length == 0) {
+            route.append('/');
+        }
+        for (int i = 0; i < path.length; i++) {
+            route.append('/');
+            if (i == 1 && path[0].equals("customers") && !path[1].isEmpty()) {
+                route.append("{id}");
+            } else if (i == 1 && path[0].equals("accounts")) {
+                route.append("{ref}");
+            } else {
+                route.append(path[i]);
+            }
+        }
+        return route.toString();
+    }
+
+    private static String[] segments(String path) {
+        String trimmed = path.replaceAll("^/+|/+$", "");
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("/+");
+    }
+
+
+    // CUSTOMERS
+    private void listCustomers(HttpExchange exchange) throws IOException {
+        try (JsonWriter json = startJson(exchange, 200)) {
+            json.beginObject().name("customers").beginArray();
+            boolean complete = backend.forEachCustomer(unchecked(c -> writeCustomer(json, c)));
+            json.endArray().field("complete", complete).endObject();
+        }
+    }
+
+    private void createCustomer(HttpExchange exchange) throws IOException {
+        Map<String, String> body = JsonReader.readObject(exchange.getRequestBody());
+        String name = required(body, "name");
+
+        Customer customer = new Customer(name);
+        customer.setAddress(body.getOrDefault("address", ""));
+        customer.setEmail(body.getOrDefault("email", ""));
+        customer.setPhone(body.getOrDefault("phone", ""));
+
+        if (!backend.createCustomer(customer)) {
+            sendError(exchange, 422, "could not create customer " + name);
+            return;
+        }
+        try (JsonWriter json = startJson(exchange, 201)) {
+            json.beginObject().field("id", customer.getId()).endObject();
+        }
+    }
+
+    private void getCustomer(HttpExchange exchange, int id) throws IOException {
+        Customer customer = backend.getCustomer(id);
+        if (customer == null) {
+            sendError(exchange, 404, "customer " + id + " not found");
+            return;
+        }
+        try (JsonWriter json = startJson(exchange, 200)) {
+            writeCustomer(json, customer);
+        }
+    }
+
+    private static void writeCustomer(JsonWriter json, Customer c) throws IOException {
+        json.beginObject()
+                .field("id", c.getId())
+                .field("name", c.getName())
+                .field("address", c.getAddress())
+                .field("email", c.getEmail())
+                .field("phone", c.getPhone())
+                .field("accounts", c.getNumAcounts())
+                .endObject();
+    }
+
+
+    // ACCOUNTS
+    private void listAccounts(HttpExchange exchange, int customerId) throws IOException {
+        if (backend.getCustomer(customerId) == null) {
+            sendError(exchange, 404, "customer " + customerId + " not found");
+            return;
+        }
+
+        List<Account> accounts = backend.getAccountsWithBalances(customerId);
+        try (JsonWriter json = startJson(exchange, 200)) {
+            json.beginObject().name("accounts").beginArray();
+            for (Account a : accounts) {
+                writeAccount(json, a, a.getCurrentBalance());
+            }
+            json.endArray().endObject();
+        }
+    }
+
+    private void createAccount(HttpExchange exchange) throws IOException {
+        Map<String, String> body = JsonReader.readObject(exchange.getRequestBody());
+        Account.Reference ref = new Account.Reference(
+                Integer.parseInt(required(body, "customerId")),
+                Integer.parseInt(required(body, "accountNumber")));
+        Amount initialBalance = parseAmount(required(body, "initialBalance"), required(body, "currency"));
+
+        if (backend.getCustomer(ref.getCustomerId()) == null) {
+            sendError(exchange, 404, "customer " + ref.getCustomerId() + " not found");
+            return;
+        }
+        if (backend.getAccount(ref) != null) {
+            sendError(exchange, 409, "account " + ref + " already exists");
+            return;
+        }
+
+        Account account = new Account(ref.getCustomerId(), ref.getAccountNumber(), initialBalance);
+        if (!backend.createAccount(account)) {
+            sendError(exchange, 422, "could not create account " + ref);
+            return;
+        }
+        try (JsonWriter json = startJson(exchange, 201)) {
+            json.beginObject().field("account", ref.toString()).endObject();
+        }
+    }
+
+    private void getAccount(HttpExchange exchange, Account.Reference ref) throws IOException {
+        Account account = backend.getAccount(ref);
+        if (account == null) {
+            sendError(exchange, 404, "account " + ref + " not found");
+            return;
+        }
+
+        Amount balance = backend.getAccountBalance(ref);
+        try (JsonWriter json = startJson(exchange, 200)) {
+            writeAccount(json, account, balance);
+        }
+    }
+
+    private static void writeAccount(JsonWriter json, Account a, Amount balance) throws IOException {
+        json.beginObject().field("account", a.getRef().toString());
+        writeAmount(json, "initialBalance", a.getInitialBalance());
+        writeAmount(json, "balance", balance);
+        json.endObject();
+    }
+
+
+    // TRANSFERS
+    private void showStatement(HttpExchange exchange, Account.Reference ref) throws IOException {
+        Map<String, String> query = query(exchange);
+        LocalDateTime from = query.containsKey("from") ? LocalDateTime.parse(query.get("from")) : null;
+        LocalDateTime to = query.containsKey("to") ? LocalDateTime.parse(query.get("to")) : null;
+
+        Account account = backend.getAccount(ref);
+        if (account == null) {
+            sendError(exchange, 404, "account " + ref + " not found");
+            return;
+        }
+        Amount balance = backend.getAccountBalance(ref);
+
+        try (JsonWriter json = startJson(exchange, 200)) {
+            json.beginObject().field("account", ref.toString());
+            writeAmount(json, "initialBalance", account.getInitialBalance());
+            writeAmount(json, "balance", balance);
+
+            json.name("transfers").beginArray();
+            boolean complete = backend.forEachTransfer(ref, from, to, unchecked(t -> {
+                json.beginObject()
+                        .field("id", t.getId())
+                        .field("executionDate", t.getExecutionDate().toString())
+                        .field("direction", t.getSignFor(ref) == '+' ? "incoming" : "outgoing")
+                        .field("sender", t.getSender().toString())
+                        .field("senderName", t.getSenderName())
+                        .field("receiver", t.getReceiver().toString())
+                        .field("receiverName", t.getReceiverName());
+                writeAmount(json, "amount", t.getAmount());
+                json.field("reference", t.getReference()).endObject();
+            }));
+            json.endArray().field("complete", complete).endObject();
+        }
+    }
+
+    private void makeTransfer(HttpExchange exchange) throws IOException {
+        Map<String, String> body = JsonReader.readObject(exchange.getRequestBody());
+        Account.Reference sender = parseRef(required(body, "sender"));
+        Account.Reference receiver = parseRef(required(body, "receiver"));
+        Amount amount = parseAmount(required(body, "amount"), required(body, "currency"));
+        String reference = body.getOrDefault("reference", "");
+        if (reference == null || reference.length() > 100) {
+            throw new IllegalArgumentException("reference must have at most 100 characters");
+        }
+
+        // Same checks as Input
+        for (Account.Reference ref : new Account.Reference[] {sender, receiver}) {
+            if (backend.getAccount(ref) == null) {
+                sendError(exchange, 404, "account " + ref + " not found");
+                return;
+            }
+        }
+
+        Transfer transfer = new Transfer(sender, receiver, amount, reference);
+        TransferResult result = backend.makeCheckedTransfer(transfer);
+
+        int status = result == TransferResult.SUCCESS ? 201
+                : result == TransferResult.INSUFFICIENT_FUNDS ? 409 : 422;
+        try (JsonWriter json = startJson(exchange, status)) {
+            json.beginObject().field("result", result.name());
+            if (result == TransferResult.SUCCESS) {
+                // Only known when the engine assigns ids itself
+                if (transfer.getId() != 0) {
+                    json.field("id", transfer.getId());
+                }
+                json.field("executionDate", transfer.getExecutionDate().toString());
+            }
+            json.endObject();
+        }
+    }
+
+    private void refreshRates(HttpExchange exchange) throws IOException {
+        boolean refreshed = db.refreshExchangeRates();
+        try (JsonWriter json = startJson(exchange, refreshed ? 200 : 503)) {
+            json.beginObject().field("refreshed", refreshed).endObject();
+        }
+    }
+
+
+    // METRICS
+    private void showMetrics(HttpExchange exchange) throws IOException {
+        try (JsonWriter json = startJson(exchange, 200)) {
+            json.beginObject().name("endpoints").beginArray();
+            for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(metrics).entrySet()) {
+                LatencyHistogram h = e.getValue();
+                json.beginObject()
+                        .field("route", e.getKey())
+                        .field("count", h.getCount())
+                        .field("meanMicros", h.getMeanMicros())
+                        .field("p50Micros", h.getPercentileMicros(50))
+                        .field("p99Micros", h.getPercentileMicros(99))
+                        .field("maxMicros", h.getMaxMicros())
+                        .endObject();
+            }
+            json.endArray().endObject();
+        }
+    }
+
+
+    // Helpers
+    /**
+     * Send the headers of a JSON response, the body is streamed with chunked encoding
+     */
+    private static JsonWriter startJson(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, 0);
+        return new JsonWriter(exchange.getResponseBody());
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        // Headers are already sent if the error happened while streaming
+        if (exchange.getResponseCode() != -1) {
+            return;
+        }
+        try (JsonWriter json = startJson(exchange, status)) {
+            json.beginObject().field("error", message).endObject();
+        } catch (IOException e) {
+            log.log(Level.INFO, "error sending error response", e);
+        }
+    }
+
+    private static void writeAmount(JsonWriter json, String name, Amount amount) throws IOException {
+        json.name(name);
+        if (amount == null) {
+            json.value((String) null);
+            return;
+        }
+        json.beginObject()
+                .name("amount").number(amount.toBigDecimal().stripTrailingZeros().toPlainString())
+                .field("currency", amount.getCurrency())
+                .endObject();
+    }
+
+    private Amount parseAmount(String value, String currency) {
+        BigDecimal amount = new BigDecimal(value);
+        if (!Input.isValidAmount(amount)) {
+            throw new IllegalArgumentException("invalid amount, must be positive number with at most 2 decimal places");
+        }
+        if (!currencies.contains(currency)) {
+            throw new IllegalArgumentException("invalid currency " + currency);
+        }
+        return new Amount(amount, currency);
+    }
+
+    /**
+     * @param ref Customer id and account number separated by a dash, as printed by Account.Reference
+     */
+    private static Account.Reference parseRef(String ref) {
+        String[] parts = ref.split("-");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("invalid account " + ref + ", must be customer id-account number");
+        }
+        return new Account.Reference(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    private static String required(Map<String, String> body, String name) {
+        String value = body.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("missing " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8.name()),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8.name()));
+                }
+            }
+        }
+        return query;
+    }
+
+    @FunctionalInterface
+    private interface IOConsumer<T> {
+        void accept(T t) throws IOException;
+    }
+
+    /**
+     * For writing to the response from the consumers of the forEach methods
+     */
+    private static <T> Consumer<T> unchecked(IOConsumer<T> consumer) {
+        return t -> {
+            try {
+                consumer.accept(t);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Stop accepting requests and wait up to a second for running ones
+     */
+    @Override
+    public void close() {
+        http.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
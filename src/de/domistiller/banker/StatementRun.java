@@ -0,0 +1,200 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the statements of all accounts for one month, one file per account named like the account, e.g. 1-2.txt
+ * Workers take the next account from a shared counter, so long and short histories even out across them
+ * Each statement streams the account's transfers straight into its file, the closing balance is the opening
+ * balance plus the transfers converted with the exchange rates at the start of the run
+ */
+class StatementRun {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final static String SEPARATOR = new String(new char[150]).replace('\0', '-');
+
+    private final Database db;
+    private final Path directory;
+    private final int threads;
+    private final long progressSeconds;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final LongAdder transfers = new LongAdder();
+
+    StatementRun(Database db, Properties settings) {
+        this.db = db;
+        directory = Paths.get(settings.getProperty("statements.dir", "statements"));
+        // Workers mostly wait for the database, one per connection keeps all of them busy
+        threads = Integer.parseInt(settings.getProperty("statements.threads",
+                Integer.toString(db.getMaxConnections())));
+        progressSeconds = Long.parseLong(settings.getProperty("statements.progress", "5"));
+    }
+
+    /**
+     * Write the statements of all accounts for the month into a subdirectory named like it, e.g. 2019-03
+     * @return Whether all statements were written
+     */
+    boolean run(YearMonth month) {
+        // Only the keys are kept, 8 bytes per account
+        long[][] keys = {new long[1024]};
+        int[] count = {0};
+        boolean listed = db.forEachAccount(a -> {
+            if (count[0] == keys[0].length) {
+                keys[0] = Arrays.copyOf(keys[0], count[0] * 2);
+            }
+            keys[0][count[0]++] = a.getRef().key();
+        });
+        return listed && run(month, keys[0], count[0]);
+    }
+
+    private boolean run(YearMonth month, long[] keys, int count) {
+        Path monthDirectory = directory.resolve(month.toString());
+        try {
+            Files.createDirectories(monthDirectory);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "error creating statement directory " + monthDirectory, e);
+            return false;
+        }
+
+        LocalDateTime from = month.atDay(1).atStartOfDay();
+        LocalDateTime to = month.plusMonths(1).atDay(1).atStartOfDay();
+        ExchangeRates.Snapshot rates = db.getRates();
+        long start = System.nanoTime();
+
+        ExecutorService executor = AsyncDatabase.createExecutor("banker-statements", threads);
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = CompletableFuture.runAsync(() -> {
+                for (int index; (index = next.getAndIncrement()) < count; ) {
+                    Account.Reference ref = Account.Reference.fromKey(keys[index]);
+                    if (write(ref, from, to, rates, monthDirectory.resolve(ref + ".txt"))) {
+                        written.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+            }, executor);
+        }
+
+        CompletableFuture<Void> done = CompletableFuture.allOf(workers);
+        while (!done.isDone()) {
+            try {
+                done.get(progressSeconds, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                System.out.println(progress(count, start));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log.log(Level.SEVERE, "error writing statements", e.getCause());
+                break;
+            }
+        }
+        executor.shutdown();
+
+        System.out.println(progress(count, start));
+        return written.get() == count;
+    }
+
+    private String progress(int count, long start) {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        return String.format("%d of %d statements written, %d failed, %.1f s, %.0f statements/s, %.0f transfers/s",
+                written.get(), count, failed.get(), seconds, written.get() / seconds, transfers.sum() / seconds);
+    }
+
+    /**
+     * Write the statement of one account in the layout of the console's bank statement
+     */
+    private boolean write(Account.Reference ref, LocalDateTime from, LocalDateTime to,
+                          ExchangeRates.Snapshot rates, Path file) {
+        // Execution dates are stored in seconds, so this includes everything before the month
+        Amount opening = db.getAccountBalanceAsOf(ref, from.minusSeconds(1));
+        if (opening == null) {
+            return false;
+        }
+
+        int currency = opening.getCurrencyId();
+        long[] balance = {opening.getUnits()};
+        boolean[] converted = {true};
+        boolean fetched;
+
+        try (Formatter out = new Formatter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.format("STATEMENT FOR ACCOUNT %s FROM %s TO %s\n", ref, from.toLocalDate(), to.toLocalDate().minusDays(1));
+            out.format("%s\n", SEPARATOR);
+            out.format("DATE     TIME      AMOUNT              SENDER                           RECEIVER                           REFERENCE\n");
+            out.format("%s\n", SEPARATOR);
+            printBalance(out, "OPENING BALANCE:", opening);
+            out.format("%s\n", SEPARATOR);
+
+            fetched = db.forEachTransfer(ref, from, to, t -> {
+                Banker.printTransfer(out, t, ref);
+                transfers.increment();
+
+                // Transfers between the same account leave the balance as it is
+                if (t.getSender().equals(t.getReceiver())) {
+                    return;
+                }
+                long rate = rates.rate(t.getAmount().getCurrencyId(), currency);
+                if (rate == ExchangeRates.Snapshot.NO_RATE) {
+                    converted[0] = false;
+                    return;
+                }
+                long units = Amount.convert(t.getAmount().getUnits(), rate);
+                balance[0] = t.getSignFor(ref) == '+'
+                        ? Amount.add(balance[0], units)
+                        : Amount.subtract(balance[0], units);
+            });
+
+            out.format("%s\n", SEPARATOR);
+            if (converted[0]) {
+                printBalance(out, "CLOSING BALANCE:", Amount.ofUnits(balance[0], currency));
+            } else {
+                out.format("CLOSING BALANCE:   unknown, missing exchange rates\n");
+            }
+
+            if (out.ioException() != null) {
+                throw out.ioException();
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "error writing statement " + file, e);
+            return false;
+        }
+
+        if (!converted[0]) {
+            log.severe("no exchange rate for a transfer of account " + ref);
+        }
+        return fetched && converted[0];
+    }
+
+    private static void printBalance(Formatter out, String label, Amount balance) {
+        out.format("%-18s %s %9.2f %s\n",
+                label,
+                balance.getSign(),
+                balance.toAbsolute().getAmount(),
+                balance.getCurrency());
+    }
+}
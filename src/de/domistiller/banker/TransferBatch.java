@@ -0,0 +1,598 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
+import de.domistiller.banker.model.Transfer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes the transfers listed in files, without the interactive prompts
+ *
+ * Files ending in .csv have one transfer per line: sender,receiver,amount,currency,reference
+ * Accounts are written as customer id-account number, the reference may be quoted like "Rent, May"
+ * An optional first line starting with "sender" is a header
+ * All other files are fixed-width, columns by position starting at 1:
+ *   1-10 sender customer id, 11-15 sender account number, 16-25 receiver customer id,
+ *   26-30 receiver account number, 31-45 amount, 46-48 currency, 49-148 reference
+ * Blank lines and lines starting with # are skipped in both formats
+ *
+ * A file is read in chunks of whole lines, which are parsed in parallel and validated against the accounts and
+ * currencies cached at the start. Transfers are made in file order with the same funds checks as in the console,
+ * so memory use does not depend on the size of a file
+ * The result of every transfer is written to a file next to it, named like the file with .result appended:
+ *   line number,SUCCESS|INSUFFICIENT_FUNDS|FAILED|INVALID[,reason]
+ */
+class TransferBatch {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final static int MAX_REFERENCE_LENGTH = 100;
+
+    // Fixed-width columns, start inclusive and end exclusive, counted from 0
+    private final static int[] FIXED_COLUMNS = {0, 10, 15, 25, 30, 45, 48, 148};
+
+    private final Database db;
+    private final Backend backend;
+    private final int chunkSize;
+    private final int threads;
+    private final int batchSize;
+
+    // Cached at the start, only read while files are parsed
+    private final AccountIndex accounts = new AccountIndex(1024);
+    private final int[] currencyCodes;
+    private final int[] currencyIds;
+
+    private final Statistics total = new Statistics();
+
+    /**
+     * @param backend Makes the transfers, see the engine setting
+     */
+    TransferBatch(Database db, Backend backend, Properties settings) {
+        this.db = db;
+        this.backend = backend;
+        chunkSize = Integer.parseInt(settings.getProperty("batch.chunksize", "4")) * 1024 * 1024;
+        threads = Integer.parseInt(settings.getProperty("batch.threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        batchSize = Integer.parseInt(settings.getProperty("batch.size", "500"));
+
+        List<String> currencies = backend.getCurrencies();
+        currencyCodes = new int[currencies.size()];
+        currencyIds = new int[currencies.size()];
+        for (int i = 0; i < currencies.size(); i++) {
+            byte[] code = currencies.get(i).getBytes(StandardCharsets.US_ASCII);
+            currencyCodes[i] = packCode(code, 0);
+            currencyIds[i] = Currencies.id(currencies.get(i));
+        }
+    }
+
+    /**
+     * Process the files one after another
+     * @return Whether every file could be read and its results written, independent of the transfers' results
+     */
+    boolean run(List<String> files) {
+        if (!db.forEachAccount(a -> accounts.add(a.getRef().key()))) {
+            return false;
+        }
+        log.info("cached " + accounts.size() + " accounts for batch");
+
+        ExecutorService parsers = AsyncDatabase.createExecutor("banker-batch-parser", threads);
+        boolean success = true;
+        try {
+            for (String file : files) {
+                success &= process(Paths.get(file), parsers);
+            }
+        } finally {
+            parsers.shutdown();
+        }
+
+        if (files.size() > 1) {
+            System.out.println("Total: " + total);
+        }
+        return success;
+    }
+
+    /**
+     * Transfers of one chunk, in file order
+     */
+    private static final class Chunk {
+        // Lines in the chunk, including skipped ones
+        private int lines;
+        private int size;
+        private final int[] lineNumbers;
+        private final Transfer[] transfers;
+        // Reason why a transfer is invalid, null for valid ones
+        private final String[] errors;
+
+        private Chunk(int capacity) {
+            lineNumbers = new int[capacity];
+            transfers = new Transfer[capacity];
+            errors = new String[capacity];
+        }
+    }
+
+    private final static Chunk END = new Chunk(0);
+
+    private static final class Statistics {
+        private long transfers;
+        private long succeeded;
+        private long insufficientFunds;
+        private long failed;
+        private long invalid;
+        private long bytes;
+        private long nanos;
+
+        private void add(Statistics other) {
+            transfers += other.transfers;
+            succeeded += other.succeeded;
+            insufficientFunds += other.insufficientFunds;
+            failed += other.failed;
+            invalid += other.invalid;
+            bytes += other.bytes;
+            nanos += other.nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format("%d transfers, %d succeeded, %d insufficient funds, %d failed, %d invalid, "
+                            + "%.1f s, %.0f transfers/s, %.1f MB/s",
+                    transfers, succeeded, insufficientFunds, failed, invalid,
+                    seconds, transfers / seconds, bytes / seconds / 1024 / 1024);
+        }
+    }
+
+    private boolean process(Path file, ExecutorService parsers) {
+        boolean csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+        Path resultFile = Paths.get(file.toString() + ".result");
+        Statistics statistics = new Statistics();
+        long start = System.nanoTime();
+
+        // Parsed chunks in file order, bounded so that reading waits for the transfers to be made
+        BlockingQueue<CompletableFuture<Chunk>> parsed = new ArrayBlockingQueue<>(threads * 2);
+        IOException[] readError = new IOException[1];
+        Thread reader = new Thread(() -> {
+            try {
+                read(file, csv, parsers, parsed);
+            } catch (IOException e) {
+                readError[0] = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    parsed.put(CompletableFuture.completedFuture(END));
+                } catch (InterruptedException ignore) {}
+            }
+        }, "banker-batch-reader");
+        reader.start();
+
+        boolean success = true;
+        try (Writer results = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+            int lineBase = 0;
+            Chunk chunk;
+            while ((chunk = parsed.take().join()) != END) {
+                apply(chunk, lineBase, results, statistics);
+                lineBase += chunk.lines;
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "error writing results to " + resultFile, e);
+            success = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            success = false;
+        } finally {
+            // Let the reader finish if applying stopped early
+            parsed.clear();
+            reader.interrupt();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (readError[0] != null) {
+            log.log(Level.SEVERE, "error reading transfers from " + file, readError[0]);
+            System.out.println("Could not read " + file + ": " + readError[0].getMessage());
+            success = false;
+        }
+
+        statistics.bytes = file.toFile().length();
+        statistics.nanos = System.nanoTime() - start;
+        total.add(statistics);
+        System.out.println(file + ": " + statistics);
+        return success;
+    }
+
+    /**
+     * Split the file into chunks of whole lines and hand them to the parsers
+     */
+    private void read(Path file, boolean csv, ExecutorService parsers,
+                      BlockingQueue<CompletableFuture<Chunk>> parsed) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] buffer = new byte[chunkSize];
+            int filled = 0;
+            boolean first = true;
+
+            while (true) {
+                int n = channel.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled));
+                boolean end = n < 0;
+                if (!end) {
+                    filled += n;
+                    if (filled < buffer.length) {
+                        continue;
+                    }
+                }
+
+                // The chunk ends after its last complete line, the rest starts the next one
+                int length = filled;
+                if (!end) {
+                    while (length > 0 && buffer[length - 1] != '\n') {
+                        length--;
+                    }
+                    if (length == 0) {
+                        throw new IOException("line longer than batch.chunksize");
+                    }
+                }
+
+                if (length > 0) {
+                    byte[] bytes = buffer;
+                    int chunkLength = length;
+                    boolean header = first;
+                    parsed.put(CompletableFuture.supplyAsync(() -> parse(bytes, chunkLength, csv, header), parsers));
+                    first = false;
+
+                    buffer = new byte[chunkSize];
+                    System.arraycopy(bytes, length, buffer, 0, filled - length);
+                    filled -= length;
+                }
+                if (end) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Chunk parse(byte[] bytes, int length, boolean csv, boolean first) {
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                lines++;
+            }
+        }
+        Chunk chunk = new Chunk(lines + 1);
+
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && bytes[end] != '\n') {
+                end++;
+            }
+            int next = end + 1;
+            if (end > start && bytes[end - 1] == '\r') {
+                end--;
+            }
+            chunk.lines++;
+
+            boolean header = first && chunk.lines == 1 && startsWith(bytes, start, end, "sender");
+            if (end > start && bytes[start] != '#' && !header) {
+                int i = chunk.size++;
+                chunk.lineNumbers[i] = chunk.lines;
+                try {
+                    chunk.transfers[i] = csv ? parseCsv(bytes, start, end) : parseFixed(bytes, start, end);
+                } catch (IllegalArgumentException e) {
+                    chunk.errors[i] = e.getMessage();
+                }
+            }
+            start = next;
+        }
+        return chunk;
+    }
+
+    private Transfer parseCsv(byte[] bytes, int start, int end) {
+        int[] fields = new int[8];
+        int pos = start;
+        for (int f = 0; f < 4; f++) {
+            int comma = pos;
+            while (comma < end && bytes[comma] != ',') {
+                comma++;
+            }
+            if (comma == end) {
+                throw new IllegalArgumentException("expected 5 fields");
+            }
+            fields[f * 2] = pos;
+            fields[f * 2 + 1] = comma;
+            pos = comma + 1;
+        }
+
+        String reference;
+        if (pos < end && bytes[pos] == '"') {
+            reference = quoted(bytes, pos, end);
+        } else {
+            reference = new String(bytes, pos, end - pos, StandardCharsets.UTF_8);
+        }
+
+        return transfer(
+                parseRef(bytes, fields[0], fields[1]),
+                parseRef(bytes, fields[2], fields[3]),
+                bytes, fields[4], fields[5], fields[6], fields[7], reference);
+    }
+
+    private Transfer parseFixed(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (length < FIXED_COLUMNS[6]) {
+            throw new IllegalArgumentException("line shorter than " + FIXED_COLUMNS[6] + " characters");
+        }
+        int c = start;
+        long sender = Account.Reference.key(
+                (int) parseNumber(bytes, c + FIXED_COLUMNS[0], c + FIXED_COLUMNS[1], "sender customer id"),
+                (int) parseNumber(bytes, c + FIXED_COLUMNS[1], c + FIXED_COLUMNS[2], "sender account number"));
+        long receiver = Account.Reference.key(
+                (int) parseNumber(bytes, c + FIXED_COLUMNS[2], c + FIXED_COLUMNS[3], "receiver customer id"),
+                (int) parseNumber(bytes, c + FIXED_COLUMNS[3], c + FIXED_COLUMNS[4], "receiver account number"));
+
+        int referenceEnd = Math.min(end, c + FIXED_COLUMNS[7]);
+        while (referenceEnd > c + FIXED_COLUMNS[6] && bytes[referenceEnd - 1] == ' ') {
+            referenceEnd--;
+        }
+        String reference = c + FIXED_COLUMNS[6] < referenceEnd
+                ? new String(bytes, c + FIXED_COLUMNS[6], referenceEnd - c - FIXED_COLUMNS[6], StandardCharsets.UTF_8)
+                : "";
+
+        return transfer(sender, receiver, bytes, c + FIXED_COLUMNS[4], c + FIXED_COLUMNS[5],
+                c + FIXED_COLUMNS[5], c + FIXED_COLUMNS[6], reference);
+    }
+
+    /**
+     * Validate the fields of one transfer, amount and currency are given as byte ranges
+     */
+    private Transfer transfer(long sender, long receiver, byte[] bytes, int amountStart, int amountEnd,
+                              int currencyStart, int currencyEnd, String reference) {
+        if (accounts.find(sender) < 0) {
+            throw new IllegalArgumentException("unknown sender account " + Account.Reference.fromKey(sender));
+        }
+        if (accounts.find(receiver) < 0) {
+            throw new IllegalArgumentException("unknown receiver account " + Account.Reference.fromKey(receiver));
+        }
+
+        long units = parseUnits(bytes, amountStart, amountEnd);
+        int currency = currency(bytes, currencyStart, currencyEnd);
+        if (reference.length() > MAX_REFERENCE_LENGTH) {
+            throw new IllegalArgumentException("reference longer than " + MAX_REFERENCE_LENGTH + " characters");
+        }
+
+        return new Transfer(Account.Reference.fromKey(sender), Account.Reference.fromKey(receiver),
+                Amount.ofUnits(units, currency), reference);
+    }
+
+    /**
+     * Parse a positive amount with at most 2 decimal places, spaces around it are ignored
+     * Checked with Amount.isValidTransferUnits, without creating a BigDecimal
+     * @return Amount in units of Amount.SCALE
+     */
+    private static long parseUnits(byte[] bytes, int start, int end) {
+        start = skipSpaces(bytes, start, end);
+        end = trimSpaces(bytes, start, end);
+
+        long cents = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9') {
+                digits++;
+                if (decimals < 0) {
+                    cents = appendDigit(cents, b);
+                } else if (decimals < 2) {
+                    cents = appendDigit(cents, b);
+                    decimals++;
+                } else if (b != '0') {
+                    throw new IllegalArgumentException("amount with more than 2 decimal places");
+                }
+            } else {
+                throw new IllegalArgumentException("invalid amount");
+            }
+        }
+
+        if (digits == 0) {
+            throw new IllegalArgumentException("missing amount");
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            cents = appendDigit(cents, (byte) '0');
+        }
+        if (cents <= 0) {
+            throw new IllegalArgumentException("amount must be positive");
+        }
+        long units = cents <= Long.MAX_VALUE / Amount.CENT_UNITS ? cents * Amount.CENT_UNITS : -1;
+        if (!Amount.isValidTransferUnits(units)) {
+            throw new IllegalArgumentException("amount too large");
+        }
+        return units;
+    }
+
+    /**
+     * Amounts too large for a long are rejected like any other amount too large
+     */
+    private static long appendDigit(long cents, byte digit) {
+        if (cents > (Long.MAX_VALUE - 9) / 10) {
+            throw new IllegalArgumentException("amount too large");
+        }
+        return cents * 10 + (digit - '0');
+    }
+
+    private int currency(byte[] bytes, int start, int end) {
+        start = skipSpaces(bytes, start, end);
+        end = trimSpaces(bytes, start, end);
+        if (end - start == 3) {
+            int code = packCode(bytes, start);
+            for (int i = 0; i < currencyCodes.length; i++) {
+                if (currencyCodes[i] == code) {
+                    return currencyIds[i];
+                }
+            }
+        }
+        throw new IllegalArgumentException("unknown currency "
+                + new String(bytes, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return Key of an account written as customer id-account number
+     */
+    private static long parseRef(byte[] bytes, int start, int end) {
+        start = skipSpaces(bytes, start, end);
+        end = trimSpaces(bytes, start, end);
+        int dash = start;
+        while (dash < end && bytes[dash] != '-') {
+            dash++;
+        }
+        if (dash == end) {
+            throw new IllegalArgumentException("invalid account, must be customer id-account number");
+        }
+        return Account.Reference.key(
+                (int) parseNumber(bytes, start, dash, "customer id"),
+                (int) parseNumber(bytes, dash + 1, end, "account number"));
+    }
+
+    private static long parseNumber(byte[] bytes, int start, int end, String name) {
+        start = skipSpaces(bytes, start, end);
+        end = trimSpaces(bytes, start, end);
+        if (start == end) {
+            throw new IllegalArgumentException("missing " + name);
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                throw new IllegalArgumentException("invalid " + name);
+            }
+            value = value * 10 + (bytes[i] - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("invalid " + name);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return Reference in double quotes, quotes inside it are doubled
+     */
+    private static String quoted(byte[] bytes, int start, int end) {
+        byte[] text = new byte[end - start];
+        int length = 0;
+        for (int i = start + 1; i < end; i++) {
+            if (bytes[i] != '"') {
+                text[length++] = bytes[i];
+            } else if (i + 1 < end && bytes[i + 1] == '"') {
+                text[length++] = '"';
+                i++;
+            } else if (i + 1 == end) {
+                return new String(text, 0, length, StandardCharsets.UTF_8);
+            } else {
+                break;
+            }
+        }
+        throw new IllegalArgumentException("invalid quoted reference");
+    }
+
+    private void apply(Chunk chunk, int lineBase, Writer results, Statistics statistics) throws IOException {
+        List<Transfer> valid = new ArrayList<>(chunk.size);
+        for (int i = 0; i < chunk.size; i++) {
+            if (chunk.transfers[i] != null) {
+                valid.add(chunk.transfers[i]);
+            }
+        }
+        TransferResult[] made = make(valid);
+
+        int next = 0;
+        for (int i = 0; i < chunk.size; i++) {
+            results.write(Integer.toString(lineBase + chunk.lineNumbers[i]));
+            results.write(',');
+            statistics.transfers++;
+
+            if (chunk.transfers[i] == null) {
+                statistics.invalid++;
+                results.write("INVALID,");
+                results.write(chunk.errors[i]);
+            } else {
+                TransferResult result = made[next++];
+                results.write(result.name());
+                if (result == TransferResult.SUCCESS) {
+                    statistics.succeeded++;
+                } else if (result == TransferResult.INSUFFICIENT_FUNDS) {
+                    statistics.insufficientFunds++;
+                } else {
+                    statistics.failed++;
+                }
+            }
+            results.write('\n');
+        }
+    }
+
+    /**
+     * Make transfers in list order, in transactions of batch.size transfers with the database engine
+     */
+    private TransferResult[] make(List<Transfer> transfers) {
+        TransferResult[] results = new TransferResult[transfers.size()];
+        if (backend == db) {
+            for (int from = 0; from < transfers.size(); from += batchSize) {
+                int to = Math.min(transfers.size(), from + batchSize);
+                TransferResult[] made = db.makeCheckedTransfers(transfers.subList(from, to));
+                System.arraycopy(made, 0, results, from, made.length);
+            }
+        } else {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = backend.makeCheckedTransfer(transfers.get(i));
+            }
+        }
+        return results;
+    }
+
+    private static int packCode(byte[] bytes, int start) {
+        return (bytes[start] & 0xFF) << 16 | (bytes[start + 1] & 0xFF) << 8 | (bytes[start + 2] & 0xFF);
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase(bytes[start + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(byte[] bytes, int start, int end) {
+        while (start < end && bytes[start] == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimSpaces(byte[] bytes, int start, int end) {
+        while (end > start && bytes[end - 1] == ' ') {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,162 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Transfer;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group commit for checked transfers
+ * Collects transfers submitted concurrently and makes them in shared transactions, see Database.makeCheckedTransfers,
+ * so that the commit and its fsync on the server are paid once per group instead of once per transfer
+ * A group is closed when the window has passed since its first transfer or when it is full,
+ * and transfers arriving while a group commits form the next one
+ */
+class TransferCommitQueue implements Closeable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final Database db;
+    private final long windowNanos;
+    private final int maxBatch;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private boolean closed;
+
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder transfers = new LongAdder();
+
+    /**
+     * @param windowMicros Time to wait for further transfers after the first one of a group
+     * @param maxBatch Maximum number of transfers per transaction
+     */
+    TransferCommitQueue(Database db, long windowMicros, int maxBatch) {
+        this.db = db;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+
+        committer = new Thread(this::commit, "banker-group-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * @return Completed with the transfer's own result once its group has been committed
+     */
+    synchronized CompletableFuture<TransferResult> submit(Transfer t) {
+        Request request = new Request(t);
+        if (closed) {
+            request.result.complete(TransferResult.FAILED);
+        } else {
+            queue.add(request);
+        }
+        return request.result;
+    }
+
+    /**
+     * Committer thread, makes one group at a time until closed and all submitted transfers are made
+     */
+    private void commit() {
+        List<Request> group = new ArrayList<>(maxBatch);
+        List<Transfer> groupTransfers = new ArrayList<>(maxBatch);
+
+        try {
+            while (true) {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (isClosed() && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                group.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (group.size() < maxBatch) {
+                    queue.drainTo(group, maxBatch - group.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (group.size() == maxBatch || remaining <= 0) {
+                        break;
+                    }
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+
+                for (Request request : group) {
+                    groupTransfers.add(request.transfer);
+                }
+                makeGroup(group, groupTransfers);
+                group.clear();
+                groupTransfers.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void makeGroup(List<Request> group, List<Transfer> groupTransfers) {
+        try {
+            TransferResult[] results = db.makeCheckedTransfers(groupTransfers);
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).result.complete(results[i]);
+            }
+            transactions.increment();
+            transfers.add(group.size());
+        } catch (RuntimeException e) {
+            // Would otherwise stop the committer and leave all callers waiting
+            log.log(Level.SEVERE, "error making " + group.size() + " transfers", e);
+            for (Request request : group) {
+                request.result.complete(TransferResult.FAILED);
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop accepting transfers and wait until all submitted ones are made
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long transactions = this.transactions.sum();
+        return String.format("group commit made %d transfers in %d transactions, %.1f per transaction",
+                transfers.sum(), transactions, transactions == 0 ? 0.0 : (double) transfers.sum() / transactions);
+    }
+
+
+    private static class Request {
+        private final Transfer transfer;
+        private final CompletableFuture<TransferResult> result = new CompletableFuture<>();
+
+        private Request(Transfer transfer) {
+            this.transfer = transfer;
+        }
+    }
+}
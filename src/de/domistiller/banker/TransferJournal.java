@@ -0,0 +1,350 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
+import de.domistiller.banker.model.Transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of accepted transfers, so that the ledger can acknowledge them before they reach the database
+ * A memory-mapped file with a header (magic, start position) followed by a ring of records (payload length, CRC32,
+ * payload), records never wrap around the end, a length of WRAP or too little room left continues at the beginning
+ * Positions count all bytes ever appended, the checksum covers the position of the record, so records left over
+ * from an earlier round of the ring do not pass it
+ * Records before the start position are in the database, their space is reused once the start is synced to disk
+ * Appends must be serialized by the owner, releasing may run concurrently with appending
+ */
+class TransferJournal implements Closeable {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final static int MAGIC = 0x424e4b52;
+    private final static int HEADER_SIZE = 16;
+    private final static int RECORD_HEADER_SIZE = 8;
+    // id, sender, receiver, units, currency code, execution date, reference length
+    private final static int PAYLOAD_SIZE = 4 + 8 + 8 + 8 + 3 + 8 + 2;
+    // Length marking the rest of the ring as unused, the next record is at the beginning
+    private final static int WRAP = -1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    // Positioned copy of the buffer for the appending thread
+    private final ByteBuffer writeView;
+    private final int capacity;
+    // Size of the ring after the header
+    private final int ringSize;
+    private final CRC32 crc = new CRC32();
+    private final byte[] positionBytes = new byte[8];
+
+    private volatile long written;
+    // Start position in the header, records before it may be overwritten once it is synced
+    private volatile long released;
+    private volatile long releasedSynced;
+
+    private final long groupCommitMillis;
+    private final long fsyncIntervalMillis;
+    private final Thread syncer;
+    // Guarded by this
+    private long synced;
+    private boolean syncRequested;
+    private boolean closed;
+
+    /**
+     * Open or create the journal, replay must be called before appending
+     * @param groupCommitMillis Time to collect further appends before syncing on request
+     * @param fsyncIntervalMillis Interval between syncs, 0 to sync only on request in awaitSync
+     */
+    TransferJournal(Path path, int capacity, long groupCommitMillis, long fsyncIntervalMillis) throws IOException {
+        this.groupCommitMillis = groupCommitMillis;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+        // An existing journal keeps its size, so that no records are cut off
+        this.capacity = (int) Math.max(capacity, channel.size());
+        ringSize = this.capacity - HEADER_SIZE;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        writeView = buffer.duplicate();
+
+        if (created) {
+            buffer.putInt(0, MAGIC);
+            buffer.putLong(8, 0);
+            buffer.force();
+        } else if (buffer.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException(path + " is not a transfer journal of this version");
+        }
+
+        syncer = new Thread(this::sync, "banker-journal-syncer");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Pass all valid records from the start position to the consumer, in the order they were appended
+     * Reading stops at the first record which is incomplete or does not pass its checksum
+     * @return Number of records
+     */
+    int replay(Consumer<Transfer> consumer) {
+        ByteBuffer read = buffer.duplicate();
+        long position = buffer.getLong(8);
+        released = position;
+        releasedSynced = position;
+        int count = 0;
+
+        while (true) {
+            int offset = offset(position);
+            int room = ringSize - (offset - HEADER_SIZE);
+            if (room < RECORD_HEADER_SIZE + PAYLOAD_SIZE || read.getInt(offset) == WRAP) {
+                // A wrap is only valid if the record at the beginning of the ring passes its checksum
+                position += room;
+                offset = HEADER_SIZE;
+                room = ringSize;
+            }
+
+            int length = read.getInt(offset);
+            if (length < PAYLOAD_SIZE || RECORD_HEADER_SIZE + length > room) {
+                break;
+            }
+            read.limit(offset + RECORD_HEADER_SIZE + length).position(offset + RECORD_HEADER_SIZE);
+            if ((int) checksum(position, read) != read.getInt(offset + 4)) {
+                break;
+            }
+
+            read.position(offset + RECORD_HEADER_SIZE);
+            consumer.accept(decode(read));
+            read.limit(capacity);
+            position += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+
+        written = position;
+        synchronized (this) {
+            synced = written;
+        }
+        return count;
+    }
+
+    /**
+     * Write the transfer to the journal, it is durable once awaitSync has returned for the position
+     * @return The position after the record or -1 if the journal is full
+     */
+    long append(Transfer t) {
+        byte[] reference = t.getReference().getBytes(StandardCharsets.UTF_8);
+        int length = PAYLOAD_SIZE + reference.length;
+        long position = written;
+        int offset = offset(position);
+        int room = ringSize - (offset - HEADER_SIZE);
+        int skipped = 0;
+        if (RECORD_HEADER_SIZE + length > room) {
+            skipped = room;
+        }
+        if (position + skipped + RECORD_HEADER_SIZE + length - releasedSynced > ringSize) {
+            return -1;
+        }
+
+        writeView.limit(capacity);
+        if (skipped > 0) {
+            if (room >= RECORD_HEADER_SIZE + PAYLOAD_SIZE) {
+                writeView.putInt(offset, WRAP);
+            }
+            position += skipped;
+            offset = HEADER_SIZE;
+        }
+
+        writeView.position(offset + RECORD_HEADER_SIZE);
+        writeView.putInt(t.getId());
+        writeView.putLong(t.getSender().key());
+        writeView.putLong(t.getReceiver().key());
+        writeView.putLong(t.getAmount().getUnits());
+        writeView.put(t.getAmount().getCurrency().getBytes(StandardCharsets.US_ASCII), 0, 3);
+        writeView.putLong(t.getExecutionDate().toEpochSecond(ZoneOffset.UTC));
+        writeView.putShort((short) reference.length);
+        writeView.put(reference);
+
+        writeView.limit(offset + RECORD_HEADER_SIZE + length).position(offset + RECORD_HEADER_SIZE);
+        writeView.putInt(offset + 4, (int) checksum(position, writeView));
+        // Written last, a record cut off by a crash fails its checksum
+        writeView.putInt(offset, length);
+
+        written = position + RECORD_HEADER_SIZE + length;
+        return written;
+    }
+
+    /**
+     * Mark all records up to the position as persisted, their space is reused once this has been synced
+     * The start is synced right away once a sixteenth of the ring can be reclaimed, otherwise with the next sync
+     */
+    void release(long position) {
+        if (position <= released) {
+            return;
+        }
+        released = position;
+        buffer.putLong(8, position);
+        if (position - releasedSynced >= ringSize / 16) {
+            buffer.force();
+            synchronized (this) {
+                releasedSynced = Math.max(releasedSynced, position);
+            }
+        }
+    }
+
+    /**
+     * Position after the last record
+     */
+    long getWritten() {
+        return written;
+    }
+
+    /**
+     * Wait until everything up to the position has been synced to disk
+     * Returns right away when syncing on an interval, the record is then only safe from process crashes
+     */
+    void awaitSync(long position) {
+        if (fsyncIntervalMillis > 0) {
+            return;
+        }
+
+        boolean interrupted = false;
+        synchronized (this) {
+            while (synced < position && !closed) {
+                syncRequested = true;
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Number of bytes used by records which are not released
+     */
+    long getUsed() {
+        return written - released;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    private int offset(long position) {
+        return HEADER_SIZE + (int) (position % ringSize);
+    }
+
+    private long checksum(long position, ByteBuffer payload) {
+        ByteBuffer.wrap(positionBytes).putLong(position);
+        crc.reset();
+        crc.update(positionBytes);
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static Transfer decode(ByteBuffer read) {
+        int id = read.getInt();
+        long sender = read.getLong();
+        long receiver = read.getLong();
+        long units = read.getLong();
+        byte[] currency = new byte[3];
+        read.get(currency);
+        long date = read.getLong();
+        byte[] reference = new byte[read.getShort()];
+        read.get(reference);
+
+        return new Transfer(
+                id,
+                Account.Reference.fromKey(sender),
+                Account.Reference.fromKey(receiver),
+                Amount.ofUnits(units, Currencies.id(new String(currency, StandardCharsets.US_ASCII))),
+                LocalDateTime.ofEpochSecond(date, 0, ZoneOffset.UTC),
+                new String(reference, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Syncer thread, forces the mapping to disk on request or on the interval
+     */
+    private void sync() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (fsyncIntervalMillis > 0) {
+                        wait(fsyncIntervalMillis);
+                    } else {
+                        while (!syncRequested && !closed) {
+                            wait();
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+
+                if (fsyncIntervalMillis == 0 && groupCommitMillis > 0) {
+                    // Let further transfers join this sync
+                    Thread.sleep(groupCommitMillis);
+                }
+                force();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void force() {
+        long position = written;
+        long start = released;
+        synchronized (this) {
+            if (position <= synced && start <= releasedSynced) {
+                syncRequested = false;
+                return;
+            }
+        }
+
+        buffer.force();
+
+        synchronized (this) {
+            synced = Math.max(synced, position);
+            releasedSynced = Math.max(releasedSynced, start);
+            syncRequested = false;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            syncer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "error closing transfer journal", e);
+        }
+    }
+}
@@ -0,0 +1,599 @@
+package de.domistiller.banker;
+
+import de.domistiller.banker.model.Account;
+import de.domistiller.banker.model.Amount;
+import de.domistiller.banker.model.Currencies;
+import de.domistiller.banker.model.Customer;
+import de.domistiller.banker.model.Transfer;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongUnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transfer engine passing all transfers through a pre-allocated ring buffer, in the style of the LMAX disruptor
+ * Every transfer passes the stages validate, convert, apply, persist and notify. Each stage runs on its own thread
+ * and handles everything its predecessor has published so far as one batch
+ * Balances are owned by the apply stage alone, so no locks are taken on the way of a transfer
+ * All other operations are served by the Database, so balances read there only include persisted transfers
+ * Nothing else may make transfers while the pipeline runs, balances are only loaded at startup
+ */
+class TransferPipeline implements Backend {
+
+    private final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    /**
+     * How stages and callers wait for work or results
+     */
+    enum WaitStrategy {
+        // Lowest latency, keeps one core busy per stage
+        BUSY_SPIN,
+        // Low latency, gives other threads a chance on the same core
+        YIELD,
+        // Sleeps until woken by the previous stage, least CPU
+        PARK;
+
+        private final static long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        void idle() {
+            switch (this) {
+                case BUSY_SPIN:
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                case PARK:
+                    LockSupport.parkNanos(PARK_NANOS);
+                    break;
+            }
+        }
+
+        void wake(Thread thread) {
+            if (this == PARK) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private final Database db;
+    private final WaitStrategy waitStrategy;
+    private final int batchSize;
+    private final BitSet currencies = new BitSet();
+
+    private final Entry[] entries;
+    private final int mask;
+    // Sequence last published in each entry, so that entries claimed by concurrent callers are handled in order
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+
+    private final Sequence validated = new Sequence();
+    private final Sequence converted = new Sequence();
+    private final Sequence applied = new Sequence();
+    private final Sequence persisted = new Sequence();
+    private final Sequence notified = new Sequence();
+    private final Thread[] stages;
+
+    private volatile boolean closed;
+    private volatile boolean stopped;
+
+    // Owned by the apply stage
+    private final AccountIndex accounts;
+    private long[] balances;
+    // Credits of transfers not yet persisted, they only count for funds checks once the database accepted them,
+    // so undoing a rejected transfer never takes away money a later transfer was checked against
+    private long[] unsettledCredits;
+    // Receiver slot and credit of the transfer applied at each index of the ring buffer, slot -1 if none was
+    private final int[] creditSlots;
+    private final long[] credits;
+    // Last sequence whose credit has been settled
+    private long settled = -1;
+    // Transfers the database rejected, undone by the apply stage before its next batch
+    private final Queue<Reversal> reversals = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<Waiter> waiters = ThreadLocal.withInitial(Waiter::new);
+
+    // Owned by the persist stage
+    private final List<Transfer> persistBatch = new ArrayList<>();
+    private volatile long persistedTransfers;
+    private volatile long persistBatches;
+
+    /**
+     * Load all account balances and start the stages
+     * @throws IllegalStateException If the balances could not be loaded
+     */
+    TransferPipeline(Database db, Properties settings) {
+        this.db = db;
+        waitStrategy = WaitStrategy.valueOf(settings.getProperty("pipeline.wait", "park").toUpperCase());
+        batchSize = Integer.parseInt(settings.getProperty("batchsize", "1000"));
+
+        int size = Integer.highestOneBit(Math.max(2, Integer.parseInt(settings.getProperty("pipeline.size", "4096")) - 1)) << 1;
+        entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+        }
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        creditSlots = new int[size];
+        credits = new long[size];
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+
+        for (String code : db.getCurrencies()) {
+            currencies.set(Currencies.id(code));
+        }
+
+        accounts = new AccountIndex(1024);
+        balances = new long[1024];
+        unsettledCredits = new long[1024];
+        if (!db.forEachAccount(a -> addAccount(a.getRef().key(), a.getCurrentBalance().getUnits()))) {
+            throw new IllegalStateException("account balances could not be loaded");
+        }
+        log.info("loaded " + accounts.size() + " account balances into the transfer pipeline");
+
+        stages = new Thread[] {
+                new Thread(() -> runStage(validated, this::publishedUpTo, this::validate, 1), "banker-pipeline-validate"),
+                new Thread(() -> runStage(converted, next -> validated.get(), this::convert, 2), "banker-pipeline-convert"),
+                new Thread(() -> runStage(applied, next -> converted.get(), this::apply, 3), "banker-pipeline-apply"),
+                new Thread(() -> runStage(persisted, next -> applied.get(), this::persist, 4), "banker-pipeline-persist"),
+                new Thread(() -> runStage(notified, next -> persisted.get(), this::notifyCallers, 5), "banker-pipeline-notify")
+        };
+        for (Thread stage : stages) {
+            stage.setDaemon(true);
+            stage.start();
+        }
+    }
+
+
+    // TRANSFERS
+    /**
+     * Publish the transfer to the ring buffer and wait for its result
+     * Allocates nothing, the entry is reused and each thread waits on its own reusable waiter
+     */
+    @Override
+    public TransferResult makeCheckedTransfer(Transfer t) {
+        if (closed) {
+            return TransferResult.FAILED;
+        }
+
+        Waiter waiter = waiters.get();
+        waiter.result = null;
+
+        long sequence = claimed.getAndIncrement();
+        // The entry is free once the notify stage is done with its previous use
+        while (sequence - entries.length > notified.get()) {
+            if (stopped) {
+                return TransferResult.FAILED;
+            }
+            waitStrategy.idle();
+        }
+
+        int index = (int) sequence & mask;
+        Entry entry = entries[index];
+        entry.transfer = t;
+        entry.waiter = waiter;
+        published.lazySet(index, sequence);
+        waitStrategy.wake(stages[0]);
+
+        TransferResult result;
+        while ((result = waiter.result) == null) {
+            if (stopped) {
+                return TransferResult.FAILED;
+            }
+            waitStrategy.idle();
+        }
+        return result;
+    }
+
+    /**
+     * Highest sequence published without gaps, entries may be published out of order by concurrent callers
+     */
+    private long publishedUpTo(long next) {
+        long sequence = next;
+        while (published.get((int) sequence & mask) == sequence) {
+            sequence++;
+        }
+        return sequence - 1;
+    }
+
+    /**
+     * Loop of a stage thread, handling everything available from the previous stage in batches
+     * @param cursor Last sequence handled by this stage
+     * @param available Last sequence handled by the previous stage, given the next one this stage needs
+     * @param next Index of the stage to wake after each batch
+     */
+    private void runStage(Sequence cursor, LongUnaryOperator available, Handler handler, int next) {
+        long sequence = cursor.get() + 1;
+        while (true) {
+            long last = Math.min(available.applyAsLong(sequence), sequence + batchSize - 1);
+            if (last >= sequence) {
+                try {
+                    handler.handle(sequence, last);
+                } catch (RuntimeException e) {
+                    // The entries still have to reach the notify stage, otherwise their callers wait forever
+                    log.log(Level.SEVERE, "error in transfer pipeline stage " + Thread.currentThread().getName(), e);
+                    for (long s = sequence; s <= last; s++) {
+                        entries[(int) s & mask].fail(TransferResult.FAILED);
+                    }
+                }
+                cursor.set(last);
+                if (next < stages.length) {
+                    waitStrategy.wake(stages[next]);
+                }
+                sequence = last + 1;
+            } else if (stopped) {
+                return;
+            } else {
+                waitStrategy.idle();
+            }
+        }
+    }
+
+    /**
+     * Check that both accounts exist and the amount is valid, like Input does for interactive transfers
+     */
+    private void validate(long from, long to) {
+        for (long s = from; s <= to; s++) {
+            Entry e = entries[(int) s & mask];
+            Amount amount = e.transfer.getAmount();
+            if (!Amount.isValidTransferUnits(amount.getUnits()) || !currencies.get(amount.getCurrencyId())) {
+                e.fail(TransferResult.FAILED);
+                continue;
+            }
+
+            Account sender = db.getAccount(e.transfer.getSender());
+            Account receiver = db.getAccount(e.transfer.getReceiver());
+            if (sender == null || receiver == null) {
+                e.fail(TransferResult.FAILED);
+                continue;
+            }
+            e.senderCurrency = sender.getInitialBalance().getCurrencyId();
+            e.senderInitial = sender.getInitialBalance().getUnits();
+            e.receiverCurrency = receiver.getInitialBalance().getCurrencyId();
+            e.receiverInitial = receiver.getInitialBalance().getUnits();
+        }
+    }
+
+    /**
+     * Look up the exchange rates, all transfers of a batch use the same rates
+     */
+    private void convert(long from, long to) {
+        ExchangeRates.Snapshot snapshot = db.getRates();
+        for (long s = from; s <= to; s++) {
+            Entry e = entries[(int) s & mask];
+            if (e.result != null) {
+                continue;
+            }
+
+            int currency = e.transfer.getAmount().getCurrencyId();
+            e.fundsRate = snapshot.rate(e.senderCurrency, currency);
+            e.senderRate = snapshot.rate(currency, e.senderCurrency);
+            e.receiverRate = snapshot.rate(currency, e.receiverCurrency);
+            if (e.fundsRate == ExchangeRates.Snapshot.NO_RATE || e.senderRate == ExchangeRates.Snapshot.NO_RATE
+                    || e.receiverRate == ExchangeRates.Snapshot.NO_RATE) {
+                log.severe("no exchange rates for transfer from " + e.transfer.getSender() + " to "
+                        + e.transfer.getReceiver() + " in " + e.transfer.getAmount().getCurrency());
+                e.fail(TransferResult.FAILED);
+            }
+        }
+    }
+
+    /**
+     * Check funds and apply the transfers to the balances, the only stage touching them
+     * Funds are checked without the credits of transfers which are not persisted yet
+     */
+    private void apply(long from, long to) {
+        // Entries are only reused once persisted, so every earlier use of the batch's entries is settled here
+        long decided = persisted.get();
+        for (long s = settled + 1; s <= decided; s++) {
+            int index = (int) s & mask;
+            int receiver = creditSlots[index];
+            if (receiver >= 0) {
+                unsettledCredits[receiver] = Amount.subtract(unsettledCredits[receiver], credits[index]);
+            }
+        }
+        settled = Math.max(settled, decided);
+
+        Reversal reversal;
+        while ((reversal = reversals.poll()) != null) {
+            int sender = accounts.find(reversal.sender);
+            int receiver = accounts.find(reversal.receiver);
+            balances[sender] = Amount.add(balances[sender], reversal.debit);
+            balances[receiver] = Amount.subtract(balances[receiver], reversal.credit);
+        }
+
+        // Cleared up front, entries failed by an exception must not settle a credit of their previous use
+        for (long s = from; s <= to; s++) {
+            creditSlots[(int) s & mask] = -1;
+        }
+        for (long s = from; s <= to; s++) {
+            int index = (int) s & mask;
+            Entry e = entries[index];
+            if (e.result != null) {
+                continue;
+            }
+
+            // Accounts created since startup have no transfers yet
+            int sender = addAccount(e.transfer.getSender().key(), e.senderInitial);
+            int receiver = addAccount(e.transfer.getReceiver().key(), e.receiverInitial);
+            long units = e.transfer.getAmount().getUnits();
+
+            try {
+                long available = Amount.subtract(balances[sender], unsettledCredits[sender]);
+                if (Amount.convert(available, e.fundsRate) < units) {
+                    e.fail(TransferResult.INSUFFICIENT_FUNDS);
+                    continue;
+                }
+
+                e.debit = Amount.convert(units, e.senderRate);
+                e.credit = Amount.convert(units, e.receiverRate);
+                long senderBalance = Amount.subtract(balances[sender], e.debit);
+                long receiverBalance = Amount.add(sender == receiver ? senderBalance : balances[receiver], e.credit);
+                balances[sender] = senderBalance;
+                balances[receiver] = receiverBalance;
+                unsettledCredits[receiver] = Amount.add(unsettledCredits[receiver], e.credit);
+                creditSlots[index] = receiver;
+                credits[index] = e.credit;
+                e.applied = true;
+            } catch (ArithmeticException ex) {
+                log.log(Level.SEVERE, "balance overflow in transfer from " + e.transfer.getSender()
+                        + " to " + e.transfer.getReceiver(), ex);
+                e.fail(TransferResult.FAILED);
+            }
+        }
+    }
+
+    /**
+     * Make all applied transfers of the batch in the database, failed ones are reverted by the apply stage
+     */
+    private void persist(long from, long to) {
+        persistBatch.clear();
+        for (long s = from; s <= to; s++) {
+            Entry e = entries[(int) s & mask];
+            if (e.applied) {
+                persistBatch.add(e.transfer);
+            }
+        }
+        if (persistBatch.isEmpty()) {
+            return;
+        }
+
+        // Caught here rather than in runStage, which would fail the entries without reverting them
+        BatchResult result;
+        try {
+            result = db.makeTransfers(persistBatch);
+        } catch (RuntimeException ex) {
+            log.log(Level.SEVERE, "error persisting " + persistBatch.size() + " transfers, reverting them", ex);
+            result = null;
+        }
+        persistBatch.clear();
+        int row = 0;
+        for (long s = from; s <= to; s++) {
+            Entry e = entries[(int) s & mask];
+            if (!e.applied) {
+                continue;
+            }
+            if (result != null && result.isSuccessful(row++)) {
+                e.result = TransferResult.SUCCESS;
+            } else {
+                reversals.add(new Reversal(e.transfer.getSender().key(), e.transfer.getReceiver().key(),
+                        e.debit, e.credit));
+                e.result = TransferResult.FAILED;
+            }
+        }
+
+        if (result != null) {
+            persistedTransfers += result.getSucceeded();
+        }
+        persistBatches++;
+    }
+
+    /**
+     * Hand the results to the waiting callers and free the entries for reuse
+     */
+    private void notifyCallers(long from, long to) {
+        for (long s = from; s <= to; s++) {
+            Entry e = entries[(int) s & mask];
+            Waiter waiter = e.waiter;
+            TransferResult result = e.result;
+            e.clear();
+
+            waiter.result = result;
+            waitStrategy.wake(waiter.thread);
+        }
+    }
+
+    // Only called by the apply stage, or while loading
+    private int addAccount(long key, long balance) {
+        int size = accounts.size();
+        int slot = accounts.add(key);
+        if (slot == size) {
+            if (slot == balances.length) {
+                balances = Arrays.copyOf(balances, balances.length * 2);
+                unsettledCredits = Arrays.copyOf(unsettledCredits, balances.length);
+            }
+            balances[slot] = balance;
+        }
+        return slot;
+    }
+
+
+    // OTHER OPERATIONS
+    @Override
+    public List<String> getCurrencies() {
+        return db.getCurrencies();
+    }
+
+    @Override
+    public Customer getCustomer(int id) {
+        return db.getCustomer(id);
+    }
+
+    @Override
+    public boolean forEachCustomer(Consumer<Customer> consumer) {
+        return db.forEachCustomer(consumer);
+    }
+
+    @Override
+    public boolean createCustomer(Customer c) {
+        return db.createCustomer(c);
+    }
+
+    @Override
+    public Account getAccount(Account.Reference ref) {
+        return db.getAccount(ref);
+    }
+
+    @Override
+    public List<Account> getAccountsWithBalances(int customerId) {
+        return db.getAccountsWithBalances(customerId);
+    }
+
+    @Override
+    public boolean createAccount(Account a) {
+        return db.createAccount(a);
+    }
+
+    @Override
+    public Amount getAccountBalance(Account.Reference ref) {
+        return db.getAccountBalance(ref);
+    }
+
+    @Override
+    public boolean forEachTransfer(Account.Reference ref, LocalDateTime from, LocalDateTime to,
+                                   Consumer<Transfer> consumer) {
+        return db.forEachTransfer(ref, from, to, consumer);
+    }
+
+    @Override
+    public Amount convertCurrency(Amount from, String toCurrency) {
+        return db.convertCurrency(from, toCurrency);
+    }
+
+    /**
+     * Stop accepting transfers, wait until all published ones are done and stop the stages
+     */
+    @Override
+    public void close() {
+        closed = true;
+        long last = claimed.get() - 1;
+        while (notified.get() < last) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        stopped = true;
+        for (Thread stage : stages) {
+            LockSupport.unpark(stage);
+        }
+        for (Thread stage : stages) {
+            try {
+                stage.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        log.info(String.format("transfer pipeline persisted %d transfers in %d batches, %.1f per batch",
+                persistedTransfers, persistBatches,
+                persistBatches == 0 ? 0.0 : (double) persistedTransfers / persistBatches));
+        db.close();
+    }
+
+
+    @FunctionalInterface
+    private interface Handler {
+        /**
+         * Handle the entries with sequences from up to to, both inclusive
+         */
+        void handle(long from, long to);
+    }
+
+    /**
+     * Slot of the ring buffer, reused for every transfer passing through it
+     * Written by one stage at a time, the cursors order the accesses
+     */
+    private static final class Entry {
+        private Transfer transfer;
+        private Waiter waiter;
+        // Set by validate
+        private int senderCurrency;
+        private int receiverCurrency;
+        private long senderInitial;
+        private long receiverInitial;
+        // Set by convert
+        private long fundsRate;
+        private long senderRate;
+        private long receiverRate;
+        // Set by apply
+        private long debit;
+        private long credit;
+        private boolean applied;
+        // Set by the stage deciding the outcome, null while the transfer is still going through
+        private TransferResult result;
+
+        private void fail(TransferResult result) {
+            this.result = result;
+            applied = false;
+        }
+
+        private void clear() {
+            transfer = null;
+            waiter = null;
+            applied = false;
+            result = null;
+        }
+    }
+
+    /**
+     * Where a caller waits for the result of its transfer, one per thread
+     */
+    private static final class Waiter {
+        private final Thread thread = Thread.currentThread();
+        private volatile TransferResult result;
+    }
+
+    /**
+     * Cursor of a stage, padded so that the cursors of different stages do not share a cache line
+     */
+    @SuppressWarnings("unused")
+    private static final class Sequence {
+        private long p1, p2, p3, p4, p5, p6, p7;
+        private volatile long value = -1;
+        private long p9, p10, p11, p12, p13, p14, p15;
+
+        long get() {
+            return value;
+        }
+
+        void set(long value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Reversal {
+        private final long sender;
+        private final long receiver;
+        private final long debit;
+        private final long credit;
+
+        private Reversal(long sender, long receiver, long debit, long credit) {
+            this.sender = sender;
+            this.receiver = receiver;
+            this.debit = debit;
+            this.credit = credit;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package de.domistiller.banker;
+
+/**
+ * Outcome of a transfer whose funds are checked before it is made
+ */
+public enum TransferResult {
+    SUCCESS,
+    INSUFFICIENT_FUNDS,
+    FAILED
+}
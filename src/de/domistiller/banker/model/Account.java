@@ -1,7 +1,5 @@
 package de.domistiller.banker.model;
 
-import java.util.Objects;
-
 /**
  * Represents a bank account
  */
@@ -9,12 +7,18 @@ public class Account {
 
     private Reference ref;
     private Amount initialBalance;
+    private Amount currentBalance;
 
     public Account(int customerId, int accountNumber, Amount initialBalance) {
         this.ref = new Reference(customerId, accountNumber);
         this.initialBalance = initialBalance;
     }
 
+    public Account(int customerId, int accountNumber, Amount initialBalance, Amount currentBalance) {
+        this(customerId, accountNumber, initialBalance);
+        this.currentBalance = currentBalance;
+    }
+
     public Reference getRef() {
         return ref;
     }
@@ -23,20 +27,51 @@ public class Account {
         return initialBalance;
     }
 
+    /**
+     * @return The balance at the time the account was fetched, null if it was fetched without balance
+     */
+    public Amount getCurrentBalance() {
+        return currentBalance;
+    }
+
 
     /**
      * Represents a primary key for an account
-     * Consists of the customer id and the account number
+     * Consists of the customer id and the account number, which can also be packed into a single long key
      */
     public static class Reference {
-        private int customerId;
-        private int accountNumber;
+        private final int customerId;
+        private final int accountNumber;
 
         public Reference(int customerId, int accountNumber) {
             this.customerId = customerId;
             this.accountNumber = accountNumber;
         }
 
+        public static Reference fromKey(long key) {
+            return new Reference(customerId(key), accountNumber(key));
+        }
+
+        /**
+         * Pack an account's primary key into a long, customer id in the upper and account number in the lower half
+         * Keys of the same customer's accounts are consecutive
+         */
+        public static long key(int customerId, int accountNumber) {
+            return ((long) customerId << 32) | (accountNumber & 0xFFFFFFFFL);
+        }
+
+        public static int customerId(long key) {
+            return (int) (key >>> 32);
+        }
+
+        public static int accountNumber(long key) {
+            return (int) key;
+        }
+
+        public long key() {
+            return key(customerId, accountNumber);
+        }
+
         public int getCustomerId() {
             return customerId;
         }
@@ -61,7 +96,7 @@ public class Account {
 
         @Override
         public int hashCode() {
-            return Objects.hash(customerId, accountNumber);
+            return 31 * customerId + accountNumber;
         }
     }
 }
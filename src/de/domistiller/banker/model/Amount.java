@@ -1,43 +1,260 @@
 package de.domistiller.banker.model;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
 /**
  * Represents a money amount in a currency
+ * Stored as a fixed-point number of units of 10^-7, which holds every transfer amount (scale 2)
+ * converted with an exchange rate (scale 5) exactly, and an interned currency id
+ * The static methods work on units directly, so hot paths can do arithmetic without allocating
  */
 public class Amount {
 
-    private double amount;
-    private String currency;
+    /**
+     * Number of decimal places of the units, matches accounts.current_balance
+     */
+    public static final int SCALE = 7;
+    /**
+     * Number of decimal places of exchange rates, matches exchangerates.rate
+     */
+    public static final int RATE_SCALE = 5;
+
+    /**
+     * Units of one cent, transfer amounts have 2 decimal places
+     */
+    public static final long CENT_UNITS = 100_000L;
+
+    private static final long RATE_ONE = 100_000L;
+    // Transfer amounts are stored in decimal(10, 2) columns
+    private static final long MAX_TRANSFER_UNITS = 100_000_000L * 10_000_000L;
+    private static final long HALF_RATE_ONE = RATE_ONE / 2;
 
+    private final long units;
+    private final int currency;
+
+    /**
+     * Rounded to SCALE decimal places
+     */
     public Amount(double amount, String currency) {
-        this.amount = amount;
+        // valueOf uses the shortest decimal representation, so 0.1 stays 0.1
+        this(BigDecimal.valueOf(amount).setScale(SCALE, RoundingMode.HALF_UP), currency);
+    }
+
+    /**
+     * @throws ArithmeticException If the amount has more than SCALE decimal places or does not fit
+     */
+    public Amount(BigDecimal amount, String currency) {
+        this(toUnits(amount), Currencies.id(currency));
+    }
+
+    private Amount(long units, int currency) {
+        this.units = units;
         this.currency = currency;
     }
 
+    /**
+     * @param units Amount in units of 10^-SCALE
+     * @param currency Interned currency id, see Currencies
+     */
+    public static Amount ofUnits(long units, int currency) {
+        return new Amount(units, currency);
+    }
+
+    public long getUnits() {
+        return units;
+    }
+
     public double getAmount() {
-        return amount;
+        return units / 1e7;
     }
 
-    public String getCurrency() {
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(units, SCALE);
+    }
+
+    public int getCurrencyId() {
         return currency;
     }
 
+    public String getCurrency() {
+        return Currencies.code(currency);
+    }
+
     public char getSign() {
-        return amount >= 0 ? '+' : '-';
+        return units >= 0 ? '+' : '-';
     }
 
     public Amount toAbsolute() {
-        return new Amount(Math.abs(amount), currency);
+        return units >= 0 ? this : new Amount(-units, currency);
     }
 
     public Amount minus(Amount other) {
-        if (!other.currency.equals(currency)) {
+        checkCurrency(other);
+        return new Amount(subtract(units, other.units), currency);
+    }
+
+    public Amount plus(Amount other) {
+        checkCurrency(other);
+        return new Amount(add(units, other.units), currency);
+    }
+
+    /**
+     * @return Negative, zero or positive like Comparable.compareTo
+     */
+    public int compareTo(Amount other) {
+        checkCurrency(other);
+        return Long.compare(units, other.units);
+    }
+
+    private void checkCurrency(Amount other) {
+        if (other.currency != currency) {
             throw new IllegalArgumentException("Only amounts of the same currency can be used");
         }
-        return new Amount(this.amount - other.amount, currency);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Amount amount = (Amount) o;
+        return units == amount.units &&
+                currency == amount.currency;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(units) + currency;
     }
 
     @Override
     public String toString() {
-        return String.format("%.2f %s", amount, currency);
+        return toBigDecimal().setScale(2, RoundingMode.HALF_UP).toPlainString() + " " + getCurrency();
+    }
+
+
+    // Allocation-free operations on units
+
+    /**
+     * @throws ArithmeticException If the amount has more than SCALE decimal places or does not fit
+     */
+    public static long toUnits(BigDecimal amount) {
+        return amount.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+    }
+
+    /**
+     * @throws ArithmeticException If the rate has more than RATE_SCALE decimal places or does not fit
+     */
+    public static long toRate(BigDecimal rate) {
+        return rate.setScale(RATE_SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+    }
+
+    /**
+     * @throws ArithmeticException On overflow
+     */
+    public static long add(long units, long otherUnits) {
+        return Math.addExact(units, otherUnits);
+    }
+
+    /**
+     * @throws ArithmeticException On overflow
+     */
+    public static long subtract(long units, long otherUnits) {
+        return Math.subtractExact(units, otherUnits);
+    }
+
+    /**
+     * Transfer amounts must be positive whole cents and fit the decimal(10, 2) columns, like Input.isValidAmount
+     */
+    public static boolean isValidTransferUnits(long units) {
+        return units > 0 && units % CENT_UNITS == 0 && units < MAX_TRANSFER_UNITS;
+    }
+
+    /**
+     * Convert units with a rate in units of 10^-RATE_SCALE
+     * Exact for amounts with at most 2 decimal places, others are rounded half away from zero
+     * @throws ArithmeticException On overflow
+     */
+    public static long convert(long units, long rate) {
+        // Split so that the product cannot overflow for amounts that fit after conversion
+        long whole = units / RATE_ONE;
+        long fraction = units % RATE_ONE;
+        long product = fraction * rate;
+        long rounded = (product + (product >= 0 ? HALF_RATE_ONE : -HALF_RATE_ONE)) / RATE_ONE;
+        return Math.addExact(Math.multiplyExact(whole, rate), rounded);
+    }
+
+
+    /**
+     * Mutable sum of amounts in one currency, for adding up many transfers without allocating
+     * Not thread-safe, give every thread its own accumulator and combine them at the end
+     */
+    public static final class Accumulator {
+        private final int currency;
+        private long units;
+        private long count;
+
+        public Accumulator(int currency) {
+            this.currency = currency;
+        }
+
+        public Accumulator add(long otherUnits) {
+            units = Amount.add(units, otherUnits);
+            count++;
+            return this;
+        }
+
+        public Accumulator subtract(long otherUnits) {
+            units = Amount.subtract(units, otherUnits);
+            count++;
+            return this;
+        }
+
+        public Accumulator add(Amount amount) {
+            if (amount.currency != currency) {
+                throw new IllegalArgumentException("Only amounts of the same currency can be used");
+            }
+            return add(amount.units);
+        }
+
+        /**
+         * Add units of another currency, converted with a rate in units of 10^-RATE_SCALE
+         */
+        public Accumulator addConverted(long otherUnits, long rate) {
+            return add(convert(otherUnits, rate));
+        }
+
+        public Accumulator addAll(Accumulator other) {
+            if (other.currency != currency) {
+                throw new IllegalArgumentException("Only amounts of the same currency can be used");
+            }
+            units = Amount.add(units, other.units);
+            count += other.count;
+            return this;
+        }
+
+        public long getUnits() {
+            return units;
+        }
+
+        public int getCurrencyId() {
+            return currency;
+        }
+
+        /**
+         * Number of amounts added or subtracted since the last reset
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public void reset() {
+            units = 0;
+            count = 0;
+        }
+
+        public Amount toAmount() {
+            return new Amount(units, currency);
+        }
     }
 }
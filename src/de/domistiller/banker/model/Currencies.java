@@ -0,0 +1,63 @@
+package de.domistiller.banker.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of interned currency codes
+ * Every code gets a small id that stays the same while the program runs,
+ * so currencies can be compared as ints and used as array indices
+ */
+public final class Currencies {
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    // Copied on registration, so lookups by id need no locking
+    private static volatile String[] codes = new String[0];
+
+    private Currencies() {}
+
+    /**
+     * Get the id of a currency code, registering it if it has not been seen before
+     */
+    public static int id(String code) {
+        Integer id = ids.get(code);
+        if (id != null) {
+            return id;
+        }
+        return register(code);
+    }
+
+    /**
+     * Get the id of a currency code without registering it
+     * @return The id or -1 if the code is unknown
+     */
+    public static int find(String code) {
+        Integer id = ids.get(code);
+        return id == null ? -1 : id;
+    }
+
+    public static String code(int id) {
+        return codes[id];
+    }
+
+    /**
+     * Number of registered currencies, all ids are below this
+     */
+    public static int count() {
+        return codes.length;
+    }
+
+    private static synchronized int register(String code) {
+        Integer id = ids.get(code);
+        if (id != null) {
+            return id;
+        }
+
+        String[] updated = Arrays.copyOf(codes, codes.length + 1);
+        updated[codes.length] = code;
+        codes = updated;
+        ids.put(code, codes.length - 1);
+        return codes.length - 1;
+    }
+}
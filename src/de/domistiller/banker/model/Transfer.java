@@ -44,6 +44,10 @@ public class Transfer {
         return id;
     }
 
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public Account.Reference getSender() {
         return sender;
     }
@@ -85,9 +89,10 @@ public class Transfer {
      * @return The sign of the transfer for the given account, either '+' or '-'
      */
     public char getSignFor(Account.Reference account) {
-        if (account.equals(this.sender)) {
+        long key = account.key();
+        if (key == sender.key()) {
             return '-';
-        } else if (account.equals(this.receiver)) {
+        } else if (key == receiver.key()) {
             return '+';
         } else {
             throw new IllegalArgumentException("Account must either be sender or receiver");